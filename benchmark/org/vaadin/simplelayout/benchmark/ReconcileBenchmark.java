@@ -0,0 +1,149 @@
+package org.vaadin.simplelayout.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vaadin.simplelayout.client.ui.LongestIncreasingSubsequence;
+
+/**
+ * JMH benchmarks for planning the child moves when VSimpleLayout reconciles
+ * its children with a new child list. The move planning based on
+ * {@link LongestIncreasingSubsequence}, as done by the client, is compared to
+ * the original position by position reconciliation, which reinserts every
+ * child that is not at its position yet.
+ * <p>
+ * Each benchmark counts the DOM insertions it plans (moves of existing
+ * children and inserts of new ones). JMH reports the totals of the "moves"
+ * and "reconciliations" counters, moves / reconciliations is the amount of
+ * insertions per update. Run with:
+ * 
+ * <pre>
+ * java -jar benchmark/target/benchmarks.jar ReconcileBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReconcileBenchmark {
+
+    /**
+     * The amount of planned insertions, reported next to the time.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Moves {
+
+        public long moves;
+
+        public long reconciliations;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            moves = 0;
+            reconciliations = 0;
+        }
+    }
+
+    /**
+     * The change of the child list: "moveToFront" moves the last child
+     * first, "moveToBack" moves the first child last, "prepend" adds a new
+     * child first, "reverse" reverses the order and "shuffle" reorders the
+     * children randomly.
+     */
+    @Param({ "moveToFront", "moveToBack", "prepend", "reverse", "shuffle" })
+    public String scenario;
+
+    @Param({ "10", "100", "1000", "10000" })
+    public int childCount;
+
+    private List<Object> oldChildren;
+
+    private List<Object> newChildren;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        oldChildren = new ArrayList<Object>(childCount);
+        for (int i = 0; i < childCount; i++) {
+            oldChildren.add(new Object());
+        }
+        newChildren = new ArrayList<Object>(oldChildren);
+        if (scenario.equals("moveToFront")) {
+            newChildren.add(0, newChildren.remove(childCount - 1));
+        } else if (scenario.equals("moveToBack")) {
+            newChildren.add(newChildren.remove(0));
+        } else if (scenario.equals("prepend")) {
+            newChildren.add(0, new Object());
+        } else if (scenario.equals("reverse")) {
+            Collections.reverse(newChildren);
+        } else if (scenario.equals("shuffle")) {
+            Collections.shuffle(newChildren, new Random(childCount));
+        } else {
+            throw new IllegalArgumentException("Unknown scenario " + scenario);
+        }
+    }
+
+    /**
+     * Plans the moves like VSimpleLayout: children on a longest run that is
+     * already in the right order stay, the rest are inserted.
+     */
+    @Benchmark
+    public boolean[] longestIncreasingSubsequence(Moves counters) {
+        HashMap<Object, Integer> oldPositions = new HashMap<Object, Integer>();
+        for (Object child : oldChildren) {
+            oldPositions.put(child, oldPositions.size());
+        }
+        int[] positions = new int[newChildren.size()];
+        for (int i = 0; i < positions.length; i++) {
+            Integer oldPosition = oldPositions.get(newChildren.get(i));
+            positions[i] = oldPosition != null ? oldPosition : -1;
+        }
+        boolean[] inPlace = LongestIncreasingSubsequence.find(positions);
+        for (boolean stays : inPlace) {
+            if (!stays) {
+                counters.moves++;
+            }
+        }
+        counters.reconciliations++;
+        return inPlace;
+    }
+
+    /**
+     * Plans the moves like the original reconciliation: the children are
+     * walked in the new order, and every child that is not at its position
+     * is inserted there, which shifts all following children.
+     */
+    @Benchmark
+    public List<Object> positional(Moves counters) {
+        ArrayList<Object> children = new ArrayList<Object>(oldChildren);
+        for (int i = 0; i < newChildren.size(); i++) {
+            Object child = newChildren.get(i);
+            if (i >= children.size() || children.get(i) != child) {
+                children.remove(child);
+                children.add(i, child);
+                counters.moves++;
+            }
+        }
+        counters.reconciliations++;
+        return children;
+    }
+}
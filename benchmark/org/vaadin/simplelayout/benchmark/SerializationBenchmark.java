@@ -0,0 +1,178 @@
+package org.vaadin.simplelayout.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vaadin.simplelayout.SimpleLayout;
+
+import com.vaadin.ui.AbstractLayout;
+import com.vaadin.ui.Component;
+import com.vaadin.ui.Label;
+
+/**
+ * JMH benchmarks for the serialization of {@link SimpleLayout}, as done for
+ * session replication, compared to a layout with the original
+ * {@link LinkedList} based, default serialized child list.
+ * <p>
+ * Each benchmark counts the bytes it writes or reads. JMH reports the totals
+ * of the "bytes" and "layouts" counters, bytes / layouts is the serialized
+ * size of the layout. Run with:
+ * 
+ * <pre>
+ * java -jar benchmark/target/benchmarks.jar SerializationBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    /**
+     * The size of the serialized layouts, reported next to the time.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Sizes {
+
+        public long bytes;
+
+        public long layouts;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+            layouts = 0;
+        }
+
+        private void count(byte[] serialized) {
+            bytes += serialized.length;
+            layouts++;
+        }
+    }
+
+    /**
+     * The original LinkedList based child list handling of SimpleLayout, used
+     * as the baseline.
+     */
+    @SuppressWarnings("serial")
+    public static class LinkedListLayout extends AbstractLayout {
+
+        private LinkedList<Component> components = new LinkedList<Component>();
+
+        boolean stripDimensions = false;
+
+        @Override
+        public void addComponent(Component c) {
+            components.add(c);
+            super.addComponent(c);
+        }
+
+        @Override
+        public void removeComponent(Component c) {
+            components.remove(c);
+            super.removeComponent(c);
+        }
+
+        public Iterator<Component> getComponentIterator() {
+            return components.iterator();
+        }
+
+        public void replaceComponent(Component oldComponent,
+                Component newComponent) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Param({ "10", "100", "1000", "10000" })
+    public int childCount;
+
+    private SimpleLayout layout;
+
+    private LinkedListLayout baseline;
+
+    private byte[] layoutBytes;
+
+    private byte[] baselineBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        layout = new SimpleLayout();
+        layout.setDeltaPainting(true);
+        baseline = new LinkedListLayout();
+        for (int i = 0; i < childCount; i++) {
+            layout.addComponent(new Label("Label " + i));
+            baseline.addComponent(new Label("Label " + i));
+        }
+        layoutBytes = serialize(layout);
+        baselineBytes = serialize(baseline);
+    }
+
+    private static byte[] serialize(Object o) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(o);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException,
+            ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+                bytes));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public byte[] serializeSimpleLayout(Sizes sizes) throws IOException {
+        byte[] bytes = serialize(layout);
+        sizes.count(bytes);
+        return bytes;
+    }
+
+    @Benchmark
+    public byte[] serializeBaseline(Sizes sizes) throws IOException {
+        byte[] bytes = serialize(baseline);
+        sizes.count(bytes);
+        return bytes;
+    }
+
+    @Benchmark
+    public Object deserializeSimpleLayout(Sizes sizes) throws IOException,
+            ClassNotFoundException {
+        sizes.count(layoutBytes);
+        return deserialize(layoutBytes);
+    }
+
+    @Benchmark
+    public Object deserializeBaseline(Sizes sizes) throws IOException,
+            ClassNotFoundException {
+        sizes.count(baselineBytes);
+        return deserialize(baselineBytes);
+    }
+}
@@ -0,0 +1,130 @@
+package org.vaadin.simplelayout.benchmark;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.vaadin.simplelayout.SimpleLayout;
+
+import com.vaadin.terminal.PaintException;
+import com.vaadin.terminal.PaintTarget;
+import com.vaadin.ui.Component;
+import com.vaadin.ui.Label;
+
+/**
+ * JMH benchmarks for the server side hot paths of {@link SimpleLayout}.
+ * <p>
+ * Benchmarks that change the layout restore it in the same invocation (for
+ * example an add is followed by a remove), so the child count stays at the
+ * parameter value. Build the benchmarks with benchmark/pom.xml and run them
+ * with the GC profiler for allocation rates:
+ * 
+ * <pre>
+ * mvn -f benchmark/pom.xml package
+ * java -jar benchmark/target/benchmarks.jar SimpleLayoutBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimpleLayoutBenchmark {
+
+    @Param({ "10", "100", "1000", "10000", "100000" })
+    public int childCount;
+
+    private SimpleLayout layout;
+
+    private Component[] children;
+
+    private Component extra;
+
+    private PaintTarget target;
+
+    private int cursor = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        layout = new SimpleLayout();
+        children = new Component[childCount];
+        for (int i = 0; i < childCount; i++) {
+            children[i] = new Label("Label " + i);
+            layout.addComponent(children[i]);
+        }
+        extra = new Label("Extra");
+        target = StubPaintTarget.create();
+    }
+
+    /**
+     * @return the next child, cycling through all of them
+     */
+    private Component nextChild() {
+        cursor = (cursor + 7919) % childCount;
+        return children[cursor];
+    }
+
+    @Benchmark
+    public void addComponentAppend() {
+        layout.addComponent(extra);
+        layout.removeComponent(extra);
+    }
+
+    @Benchmark
+    public void addComponentIndexed() {
+        layout.addComponent(extra, childCount / 2);
+        layout.removeComponent(extra);
+    }
+
+    @Benchmark
+    public void removeComponent() {
+        Component c = nextChild();
+        int index = layout.getComponentIndex(c);
+        layout.removeComponent(c);
+        layout.addComponent(c, index);
+    }
+
+    @Benchmark
+    public void replaceComponentWithNew() {
+        Component c = nextChild();
+        layout.replaceComponent(c, extra);
+        layout.replaceComponent(extra, c);
+    }
+
+    @Benchmark
+    public void replaceComponentSwap() {
+        layout.replaceComponent(nextChild(), nextChild());
+    }
+
+    @Benchmark
+    public int getComponentIndex() {
+        return layout.getComponentIndex(nextChild());
+    }
+
+    @Benchmark
+    public void getComponentIterator(Blackhole blackhole) {
+        for (Iterator<Component> i = layout.getComponentIterator(); i
+                .hasNext();) {
+            blackhole.consume(i.next());
+        }
+    }
+
+    @Benchmark
+    public long paintContent() throws PaintException {
+        layout.paintContent(target);
+        return StubPaintTarget.getCalls(target);
+    }
+}
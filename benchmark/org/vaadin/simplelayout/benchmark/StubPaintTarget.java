@@ -0,0 +1,52 @@
+package org.vaadin.simplelayout.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import com.vaadin.terminal.PaintTarget;
+
+/**
+ * Creates {@link PaintTarget}s that discard everything painted to them. The
+ * paint target reports every paintable as not cached, so each paint does the
+ * full amount of work. Calls are counted so that the benchmarks have a result
+ * to consume.
+ */
+public class StubPaintTarget implements InvocationHandler {
+
+    private long calls = 0;
+
+    private StubPaintTarget() {
+    }
+
+    /**
+     * @return a new paint target discarding all output
+     */
+    public static PaintTarget create() {
+        return (PaintTarget) Proxy.newProxyInstance(
+                PaintTarget.class.getClassLoader(),
+                new Class<?>[] { PaintTarget.class }, new StubPaintTarget());
+    }
+
+    /**
+     * @return the amount of calls made to the given stub paint target
+     */
+    public static long getCalls(PaintTarget target) {
+        return ((StubPaintTarget) Proxy.getInvocationHandler(target)).calls;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        calls++;
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == String.class) {
+            return method.getName();
+        }
+        return null;
+    }
+}
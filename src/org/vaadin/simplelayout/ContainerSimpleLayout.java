@@ -0,0 +1,356 @@
+package org.vaadin.simplelayout;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import com.vaadin.data.Container;
+import com.vaadin.data.Container.ItemSetChangeEvent;
+import com.vaadin.data.Container.ItemSetChangeListener;
+import com.vaadin.data.Container.ItemSetChangeNotifier;
+import com.vaadin.ui.Component;
+
+/**
+ * A virtualized {@link SimpleLayout} that shows the items of a container. A
+ * child component is created by a {@link ComponentFactory} only for the items
+ * in the painted window. When items leave the window, their components are
+ * removed from the layout and kept in a bounded pool, and the factory can
+ * reuse them for the items entering the window.
+ * <p>
+ * The components of the painted items are regular children of the layout, so
+ * {@link #getComponentIterator()} and layout click events work as with
+ * {@link SimpleLayout}. Components can not be added or removed manually.
+ */
+@SuppressWarnings("serial")
+public class ContainerSimpleLayout extends SimpleLayout {
+
+    /**
+     * Creates the components of the items shown in a
+     * {@link ContainerSimpleLayout}.
+     */
+    public interface ComponentFactory extends Serializable {
+
+        /**
+         * Returns the component for the given item.
+         *
+         * @param container
+         *            the container of the item
+         * @param itemId
+         *            the id of the item
+         * @param recycled
+         *            a component that was previously returned by this factory
+         *            and is no longer in the layout, or null. It can be
+         *            updated to show the given item and returned instead of
+         *            creating a new component.
+         * @return the component for the item, not null
+         */
+        Component getComponent(Container.Indexed container, Object itemId,
+                Component recycled);
+    }
+
+    private Container.Indexed container;
+
+    private final ComponentFactory factory;
+
+    private int poolSize = 50;
+
+    /** Components no longer in the layout, available for reuse */
+    private final ArrayList<Component> pool = new ArrayList<Component>();
+
+    /** Components of the items in the window by item id */
+    private HashMap<Object, Component> itemComponents = new HashMap<Object, Component>();
+
+    /** Container size when the window was last updated */
+    private int size = 0;
+
+    /** Index of the item of the first child */
+    private int first = 0;
+
+    private final ItemSetChangeListener itemSetChangeListener = new ItemSetChangeListener() {
+        public void containerItemSetChange(ItemSetChangeEvent event) {
+            updateWindow();
+        }
+    };
+
+    /**
+     * Creates a layout showing the items of the given container.
+     * 
+     * @param container
+     *            the container, or null
+     * @param factory
+     *            the factory creating the components of the items
+     */
+    public ContainerSimpleLayout(Container.Indexed container,
+            ComponentFactory factory) {
+        if (factory == null) {
+            throw new IllegalArgumentException("The factory can not be null");
+        }
+        this.factory = factory;
+        setVirtualized(true);
+        setContainerDataSource(container);
+    }
+
+    /**
+     * Sets the container whose items are shown. Changes of the item set are
+     * followed if the container is an {@link ItemSetChangeNotifier}.
+     * 
+     * @param container
+     *            the container, or null to show nothing
+     */
+    public void setContainerDataSource(Container.Indexed container) {
+        if (this.container instanceof ItemSetChangeNotifier) {
+            ((ItemSetChangeNotifier) this.container)
+                    .removeListener(itemSetChangeListener);
+        }
+        this.container = container;
+        if (container instanceof ItemSetChangeNotifier) {
+            ((ItemSetChangeNotifier) container)
+                    .addListener(itemSetChangeListener);
+        }
+        refresh();
+    }
+
+    /**
+     * @return the container whose items are shown
+     */
+    public Container.Indexed getContainerDataSource() {
+        return container;
+    }
+
+    /**
+     * Recreates the components of all painted items. Components are reused
+     * from the pool when possible.
+     */
+    public void refresh() {
+        releaseAll();
+        updateWindow();
+    }
+
+    /**
+     * Sets the maximum amount of unused components kept for reuse. The
+     * default is 50.
+     * 
+     * @param poolSize
+     *            the maximum amount of components in the pool
+     */
+    public void setPoolSize(int poolSize) {
+        if (poolSize < 0) {
+            throw new IllegalArgumentException(
+                    "The pool size can not be negative");
+        }
+        this.poolSize = poolSize;
+        while (pool.size() > poolSize) {
+            pool.remove(pool.size() - 1);
+        }
+    }
+
+    /**
+     * @return the maximum amount of unused components kept for reuse
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Returns the component of the given item if the item is in the painted
+     * window.
+     * 
+     * @param itemId
+     *            the id of the item
+     * @return the component, or null if the item has no component
+     */
+    public Component getItemComponent(Object itemId) {
+        return itemComponents.get(itemId);
+    }
+
+    /**
+     * Creates the components of the items in the window and releases the
+     * components of the items that left it.
+     */
+    private void updateWindow() {
+        size = container == null ? 0 : container.size();
+        final int windowFirst = getVirtualWindowFirst();
+        final int windowLast = getVirtualWindowLast();
+
+        final List<Object> itemIds = new ArrayList<Object>(windowLast
+                - windowFirst);
+        final List<Component> kept = new ArrayList<Component>(windowLast
+                - windowFirst);
+        for (int i = windowFirst; i < windowLast; i++) {
+            Object itemId = container.getIdByIndex(i);
+            itemIds.add(itemId);
+            kept.add(itemComponents.remove(itemId));
+        }
+
+        batch(new Runnable() {
+            public void run() {
+                release(new ArrayList<Component>(itemComponents.values()));
+
+                HashMap<Object, Component> window = new HashMap<Object, Component>();
+                for (int i = 0; i < itemIds.size(); i++) {
+                    Object itemId = itemIds.get(i);
+                    Component c = kept.get(i);
+                    if (c == null) {
+                        Component recycled = pool.isEmpty() ? null : pool
+                                .remove(pool.size() - 1);
+                        c = factory.getComponent(container, itemId, recycled);
+                        if (c == null) {
+                            throw new IllegalStateException(
+                                    "The factory returned null for item "
+                                            + itemId);
+                        }
+                        ContainerSimpleLayout.super.addComponent(c, i);
+                    } else if (components.get(i) != c) {
+                        // The container has been reordered
+                        components.remove(c);
+                        components.add(i, c);
+                        requestRepaint();
+                    }
+                    window.put(itemId, c);
+                }
+                itemComponents = window;
+                first = windowFirst;
+            }
+        });
+    }
+
+    private void releaseAll() {
+        release(new ArrayList<Component>(components));
+        itemComponents.clear();
+    }
+
+    /**
+     * Removes the given components from the layout and adds them to the pool
+     * as long as there is room.
+     */
+    private void release(List<Component> released) {
+        super.removeComponents(released);
+        for (Component c : released) {
+            if (pool.size() >= poolSize) {
+                break;
+            }
+            pool.add(c);
+        }
+    }
+
+    @Override
+    protected int getVirtualSize() {
+        return size;
+    }
+
+    @Override
+    protected Component getVirtualComponent(int index) {
+        return components.get(index - first);
+    }
+
+    @Override
+    protected void virtualWindowChanged() {
+        updateWindow();
+    }
+
+    /**
+     * Always virtualized, disabling is not supported.
+     * 
+     * @throws UnsupportedOperationException
+     *             if virtualized is false
+     */
+    @Override
+    public void setVirtualized(boolean virtualized) {
+        if (!virtualized) {
+            throw new UnsupportedOperationException(
+                    "A ContainerSimpleLayout is always virtualized");
+        }
+        super.setVirtualized(virtualized);
+    }
+
+    /**
+     * NOT SUPPORTED, the components are created from the container items.
+     * 
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public void addComponent(Component c) {
+        throw new UnsupportedOperationException(
+                "The components are created from the container items");
+    }
+
+    /**
+     * NOT SUPPORTED, the components are created from the container items.
+     * 
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public void addComponent(Component c, int index) {
+        throw new UnsupportedOperationException(
+                "The components are created from the container items");
+    }
+
+    /**
+     * NOT SUPPORTED, the components are created from the container items.
+     * 
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public void removeComponent(Component c) {
+        throw new UnsupportedOperationException(
+                "The components are created from the container items");
+    }
+
+    /**
+     * NOT SUPPORTED, the components are created from the container items.
+     * 
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public void replaceComponent(Component oldComponent, Component newComponent) {
+        throw new UnsupportedOperationException(
+                "The components are created from the container items");
+    }
+
+    /**
+     * NOT SUPPORTED, the components are created from the container items.
+     * 
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public void addComponents(Collection<? extends Component> newComponents) {
+        throw new UnsupportedOperationException(
+                "The components are created from the container items");
+    }
+
+    /**
+     * NOT SUPPORTED, the components are created from the container items.
+     * 
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public void removeComponents(Collection<? extends Component> oldComponents) {
+        throw new UnsupportedOperationException(
+                "The components are created from the container items");
+    }
+
+    /**
+     * NOT SUPPORTED, the order of the components follows the container.
+     * 
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public void moveComponent(Component c, int index) {
+        throw new UnsupportedOperationException(
+                "The order of the components follows the container");
+    }
+
+    /**
+     * NOT SUPPORTED, the order of the components follows the container.
+     * 
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public void sortComponents(Comparator<? super Component> comparator) {
+        throw new UnsupportedOperationException(
+                "The order of the components follows the container");
+    }
+}
@@ -0,0 +1,80 @@
+package org.vaadin.simplelayout;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.vaadin.ui.Component;
+
+/**
+ * Collects the children for a {@link SimpleLayout} outside of the layout.
+ * The builder can be filled from any thread, also concurrently, without
+ * holding the application lock. The collected children are then installed
+ * with {@link SimpleLayout#swapContents(ContentsBuilder)}.
+ * <p>
+ * The components added to the builder must not be attached to an
+ * application while they are being built.
+ */
+@SuppressWarnings("serial")
+public class ContentsBuilder implements Serializable {
+
+    private final ArrayList<Component> components = new ArrayList<Component>();
+
+    /**
+     * Adds a component after the ones already added.
+     * 
+     * @param c
+     *            the component to add
+     * @return this builder
+     */
+    public synchronized ContentsBuilder add(Component c) {
+        if (c == null) {
+            throw new IllegalArgumentException(
+                    "Null components can not be added");
+        }
+        components.add(c);
+        return this;
+    }
+
+    /**
+     * Adds the given components after the ones already added, keeping them
+     * together even if other threads are adding components at the same time.
+     * 
+     * @param c
+     *            the components to add
+     * @return this builder
+     */
+    public synchronized ContentsBuilder addAll(
+            Collection<? extends Component> c) {
+        for (Component component : c) {
+            if (component == null) {
+                throw new IllegalArgumentException(
+                        "Null components can not be added");
+            }
+        }
+        components.addAll(c);
+        return this;
+    }
+
+    /**
+     * @return the amount of components added so far
+     */
+    public synchronized int size() {
+        return components.size();
+    }
+
+    /**
+     * Removes all components from the builder.
+     */
+    public synchronized void clear() {
+        components.clear();
+    }
+
+    /**
+     * @return a copy of the components in the order they were added
+     */
+    synchronized List<Component> snapshot() {
+        return new ArrayList<Component>(components);
+    }
+}
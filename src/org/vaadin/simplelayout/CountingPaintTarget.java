@@ -0,0 +1,141 @@
+package org.vaadin.simplelayout;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+
+import com.vaadin.terminal.PaintTarget;
+
+/**
+ * Wraps a {@link PaintTarget} and estimates the amount of UIDL characters
+ * painted through it from the names and values passed to it. Only used when
+ * {@link SimpleLayoutMetrics} are collected.
+ * <p>
+ * Nested layouts paint through the same wrapper, each in its own scope, and
+ * the characters and time of a nested scope are only counted for the nested
+ * layout.
+ */
+class CountingPaintTarget implements InvocationHandler {
+
+    /** Rough amount of quotes, colons and brackets around each call */
+    private static final int SYNTAX_PER_CALL = 6;
+
+    private final PaintTarget target;
+
+    private long characters = 0;
+
+    /** Characters of the nested scopes that have ended */
+    private long nestedCharacters = 0;
+
+    /** Time spent in the nested scopes that have ended */
+    private long nestedNanos = 0;
+
+    private final ArrayList<Scope> scopes = new ArrayList<Scope>();
+
+    /**
+     * The painting of one layout.
+     */
+    static class Scope {
+        private final long startCharacters;
+        private final long startNestedCharacters;
+        private final long startNanos;
+        private final long startNestedNanos;
+
+        /** Characters painted by the layout itself, set when the scope ends */
+        long characters;
+
+        /** Time spent painting the layout itself, set when the scope ends */
+        long nanos;
+
+        private Scope(CountingPaintTarget handler) {
+            startCharacters = handler.characters;
+            startNestedCharacters = handler.nestedCharacters;
+            startNestedNanos = handler.nestedNanos;
+            startNanos = System.nanoTime();
+        }
+    }
+
+    private CountingPaintTarget(PaintTarget target) {
+        this.target = target;
+    }
+
+    /**
+     * Wraps the target, unless it already is wrapped by an enclosing layout.
+     */
+    static PaintTarget wrap(PaintTarget target) {
+        if (getHandler(target) != null) {
+            return target;
+        }
+        return (PaintTarget) Proxy.newProxyInstance(
+                PaintTarget.class.getClassLoader(),
+                new Class<?>[] { PaintTarget.class }, new CountingPaintTarget(
+                        target));
+    }
+
+    private static CountingPaintTarget getHandler(PaintTarget target) {
+        if (Proxy.isProxyClass(target.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(target);
+            if (handler instanceof CountingPaintTarget) {
+                return (CountingPaintTarget) handler;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Starts counting the characters and time of one layout.
+     */
+    static void startScope(PaintTarget wrapped) {
+        CountingPaintTarget handler = getHandler(wrapped);
+        handler.scopes.add(new Scope(handler));
+    }
+
+    /**
+     * Ends the scope started last.
+     * 
+     * @return the scope, with the characters and time of the scopes nested in
+     *         it excluded
+     */
+    static Scope endScope(PaintTarget wrapped) {
+        CountingPaintTarget handler = getHandler(wrapped);
+        Scope scope = handler.scopes.remove(handler.scopes.size() - 1);
+        long characters = handler.characters - scope.startCharacters;
+        long nanos = System.nanoTime() - scope.startNanos;
+        scope.characters = characters
+                - (handler.nestedCharacters - scope.startNestedCharacters);
+        scope.nanos = nanos - (handler.nestedNanos - scope.startNestedNanos);
+        // The enclosing scope does not count any of this scope
+        handler.nestedCharacters = scope.startNestedCharacters + characters;
+        handler.nestedNanos = scope.startNestedNanos + nanos;
+        return scope;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable {
+        characters += SYNTAX_PER_CALL;
+        if (args != null) {
+            for (Object arg : args) {
+                if (arg instanceof String) {
+                    characters += ((String) arg).length();
+                } else if (arg instanceof Number || arg instanceof Boolean
+                        || arg instanceof Character) {
+                    characters += arg.toString().length();
+                } else if (arg instanceof Object[]) {
+                    for (Object o : (Object[]) arg) {
+                        characters += String.valueOf(o).length() + 3;
+                    }
+                } else if (arg != null && !(arg instanceof PaintTarget)) {
+                    // Paintables and resources are written as short ids
+                    characters += 4;
+                }
+            }
+        }
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package org.vaadin.simplelayout;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.RandomAccess;
+
+import com.vaadin.ui.Component;
+
+/**
+ * Ordered list of components with constant time positional access and an
+ * identity based position index.
+ * <p>
+ * Membership checks are always O(1). The positions stored in the index are
+ * updated lazily: a mutation only marks the positions after it as stale, and
+ * the next lookup that hits a stale position re-indexes the tail once. A
+ * component can be in the list only once.
+ * <p>
+ * Only the list of components is serialized, the index is rebuilt when the
+ * list is deserialized.
+ */
+@SuppressWarnings("serial")
+public class IndexedComponentList extends AbstractList<Component> implements
+        RandomAccess, Serializable {
+
+    private final ArrayList<Component> list = new ArrayList<Component>();
+
+    private transient IdentityHashMap<Component, Integer> index = new IdentityHashMap<Component, Integer>();
+
+    /**
+     * All positions below this one have an up-to-date entry in the index.
+     */
+    private transient int validUpTo = 0;
+
+    @Override
+    public Component get(int i) {
+        return list.get(i);
+    }
+
+    @Override
+    public int size() {
+        return list.size();
+    }
+
+    @Override
+    public void add(int i, Component c) {
+        if (index.containsKey(c)) {
+            throw new IllegalArgumentException(
+                    "The component is already in the list");
+        }
+        list.add(i, c);
+        index.put(c, i);
+        if (validUpTo >= i) {
+            validUpTo = i + 1;
+        }
+        modCount++;
+    }
+
+    @Override
+    public Component set(int i, Component c) {
+        Component old = list.get(i);
+        if (old == c) {
+            return old;
+        }
+        if (index.containsKey(c)) {
+            throw new IllegalArgumentException(
+                    "The component is already in the list");
+        }
+        list.set(i, c);
+        index.remove(old);
+        index.put(c, i);
+        return old;
+    }
+
+    /**
+     * Appends all given components with a single update of the backing list.
+     */
+    @Override
+    public boolean addAll(Collection<? extends Component> c) {
+        for (Component component : c) {
+            if (index.containsKey(component)) {
+                throw new IllegalArgumentException(
+                        "The component is already in the list");
+            }
+        }
+        int oldSize = list.size();
+        list.addAll(c);
+        for (int i = oldSize; i < list.size(); i++) {
+            Component component = list.get(i);
+            if (index.put(component, i) != null) {
+                // Same component twice in the collection, undo
+                list.subList(oldSize, list.size()).clear();
+                for (Component added : c) {
+                    index.remove(added);
+                }
+                throw new IllegalArgumentException(
+                        "The component is already in the list");
+            }
+        }
+        if (validUpTo == oldSize) {
+            validUpTo = list.size();
+        }
+        modCount++;
+        return oldSize != list.size();
+    }
+
+    /**
+     * Removes all given components in a single pass over the list.
+     */
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        boolean changed = false;
+        for (Object o : c) {
+            if (index.remove(o) != null) {
+                changed = true;
+            }
+        }
+        if (changed) {
+            int to = 0;
+            for (int from = 0; from < list.size(); from++) {
+                Component component = list.get(from);
+                if (index.containsKey(component)) {
+                    list.set(to, component);
+                    index.put(component, to);
+                    to++;
+                }
+            }
+            list.subList(to, list.size()).clear();
+            validUpTo = list.size();
+            modCount++;
+        }
+        return changed;
+    }
+
+    /**
+     * Swaps the components at the given positions.
+     * 
+     * @param i
+     *            the position of the first component
+     * @param j
+     *            the position of the second component
+     */
+    public void swap(int i, int j) {
+        Component a = list.get(i);
+        Component b = list.get(j);
+        list.set(i, b);
+        list.set(j, a);
+        index.put(b, i);
+        index.put(a, j);
+    }
+
+    /**
+     * Replaces the order of the components.
+     * 
+     * @param order
+     *            the components of this list in their new order
+     * @throws IllegalArgumentException
+     *             if the given components are not the components of this list
+     */
+    public void reorder(Component[] order) {
+        if (order.length != list.size()) {
+            throw new IllegalArgumentException(
+                    "The new order must contain all components of the list");
+        }
+        IdentityHashMap<Component, Boolean> seen = new IdentityHashMap<Component, Boolean>();
+        for (Component c : order) {
+            if (!index.containsKey(c) || seen.put(c, Boolean.TRUE) != null) {
+                throw new IllegalArgumentException(
+                        "The new order must contain all components of the list");
+            }
+        }
+        for (int i = 0; i < order.length; i++) {
+            list.set(i, order[i]);
+        }
+        validUpTo = 0;
+        modCount++;
+    }
+
+    @Override
+    public Component remove(int i) {
+        Component c = list.remove(i);
+        index.remove(c);
+        if (validUpTo > i) {
+            validUpTo = i;
+        }
+        modCount++;
+        return c;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        int i = indexOf(o);
+        if (i < 0) {
+            return false;
+        }
+        remove(i);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        list.clear();
+        index.clear();
+        validUpTo = 0;
+        modCount++;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return index.containsKey(o);
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        Integer i = index.get(o);
+        if (i == null) {
+            return -1;
+        }
+        if (i < validUpTo && list.get(i) == o) {
+            return i;
+        }
+        reindex();
+        return index.get(o);
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        return indexOf(o);
+    }
+
+    /**
+     * Updates the stale tail of the position index.
+     */
+    private void reindex() {
+        for (int i = validUpTo; i < list.size(); i++) {
+            index.put(list.get(i), i);
+        }
+        validUpTo = list.size();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        index = new IdentityHashMap<Component, Integer>(list.size());
+        for (int i = 0; i < list.size(); i++) {
+            index.put(list.get(i), i);
+        }
+        validUpTo = list.size();
+    }
+}
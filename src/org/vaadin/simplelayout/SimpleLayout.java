@@ -1,18 +1,34 @@
 package org.vaadin.simplelayout;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 
+import org.vaadin.simplelayout.client.ui.LongestIncreasingSubsequence;
 import org.vaadin.simplelayout.client.ui.VSimpleLayout;
 
+import com.vaadin.Application;
 import com.vaadin.event.LayoutEvents.LayoutClickEvent;
 import com.vaadin.event.LayoutEvents.LayoutClickListener;
 import com.vaadin.event.LayoutEvents.LayoutClickNotifier;
 import com.vaadin.terminal.PaintException;
 import com.vaadin.terminal.PaintTarget;
+import com.vaadin.terminal.Paintable.RepaintRequestEvent;
+import com.vaadin.terminal.Paintable.RepaintRequestListener;
 import com.vaadin.terminal.gwt.client.EventId;
 import com.vaadin.ui.AbstractLayout;
 import com.vaadin.ui.Component;
+import com.vaadin.ui.Label;
 
 /**
  * Server side component for the VWeeLayout widget.
@@ -25,7 +41,83 @@ public class SimpleLayout extends AbstractLayout implements LayoutClickNotifier
 
     boolean stripDimensions = false;
 
-    protected LinkedList<Component> components = new LinkedList<Component>();
+    /** The children, also available to subclasses as {@link #components} */
+    private final IndexedComponentList indexedComponents = new IndexedComponentList();
+
+    protected final List<Component> components = indexedComponents;
+
+    private boolean deltaPainting = false;
+
+    /**
+     * True when the next paint must send the complete list of children. Not
+     * serialized, set again when the layout is read.
+     */
+    private transient boolean fullPaintPending = true;
+
+    /**
+     * Children the client side currently has, in the client side order. Only
+     * tracked when delta painting is enabled. Not serialized, a deserialized
+     * layout does a full paint.
+     */
+    private transient LinkedHashSet<Component> paintedChildren = new LinkedHashSet<Component>();
+
+    /** Children added or moved since the last paint */
+    private transient HashSet<Component> insertedChildren = new HashSet<Component>();
+
+    /** Children removed since the last paint */
+    private transient HashSet<Component> removedChildren = new HashSet<Component>();
+
+    private boolean virtualized = false;
+
+    private int virtualPageLength = 100;
+
+    /** First child painted in virtualized mode */
+    private int windowFirst = 0;
+
+    /** Index after the last child painted in virtualized mode */
+    private int windowLast = 0;
+
+    private int clientWidgetPoolSize = 0;
+
+    private int progressiveChunkSize = 0;
+
+    private boolean incrementalRendering = false;
+
+    private boolean staticCollapse = false;
+
+    private boolean lightweightCaptions = false;
+
+    /**
+     * Children painted as static HTML. Created when the first child is
+     * collapsed, so that layouts not using static collapse do not serialize
+     * it.
+     */
+    private HashSet<Component> collapsedChildren = null;
+
+    /** Repaints the layout when a collapsed child changes */
+    private RepaintRequestListener collapsedRepaintListener = null;
+
+    /**
+     * Amount of children the client has while progressive painting is in
+     * progress, -1 when all children have been painted.
+     */
+    private int progressivePainted = -1;
+
+    /*
+     * The state of the current request and paint is not serialized.
+     */
+
+    /** The client has asked for the next chunk of children */
+    private transient boolean progressiveAppend = false;
+
+    /** Children have been added, removed or moved since the last paint */
+    private transient boolean childrenChanged = false;
+
+    /** Depth of nested {@link #batch(Runnable)} calls */
+    private transient int batchDepth = 0;
+
+    /** A repaint was requested inside a batch */
+    private transient boolean repaintPending = false;
 
     public SimpleLayout() {
     }
@@ -36,9 +128,9 @@ public class SimpleLayout extends AbstractLayout implements LayoutClickNotifier
      * @param stripDimensions
      *            should the layout strip all contained components of their
      *            predefined widths and heights (calls setSizeUndefined when a
-     *            component is added to the layout and remove any inline CSS
-     *            sizes in the client), allowing easier CSS styling in the
-     *            client side.
+     *            component with a defined size is added to the layout and
+     *            remove any inline CSS sizes in the client), allowing easier
+     *            CSS styling in the client side.
      *            <p>
      *            Applies only if the layout itself has an undefined size on the
      *            server side. You can still specify the size using CSS. This
@@ -58,16 +150,21 @@ public class SimpleLayout extends AbstractLayout implements LayoutClickNotifier
      */
     @Override
     public void addComponent(Component c) {
+        if (c.getParent() == this) {
+            // Re-adding a child moves it to the end
+            removeComponent(c);
+        }
         components.add(c);
         try {
             super.addComponent(c);
+            childInserted(c);
             requestRepaint();
         } catch (IllegalArgumentException e) {
             components.remove(c);
             throw e;
         }
         if (stripDimensions) {
-            c.setSizeUndefined();
+            stripSize(c);
         }
     }
 
@@ -104,14 +201,26 @@ public class SimpleLayout extends AbstractLayout implements LayoutClickNotifier
      *            in and after the position are shifted forwards.
      */
     public void addComponent(Component c, int index) {
+        if (c.getParent() == this) {
+            // Same result as the original list that held the child twice
+            // and removed the first occurrence: a child re-added forwards
+            // moves, re-added at or before its position it stays in place
+            int oldIndex = components.indexOf(c);
+            removeComponent(c);
+            index = oldIndex < index ? index - 1 : oldIndex;
+        }
         components.add(index, c);
         try {
             super.addComponent(c);
+            childInserted(c);
             requestRepaint();
         } catch (IllegalArgumentException e) {
             components.remove(c);
             throw e;
         }
+        if (stripDimensions) {
+            stripSize(c);
+        }
     }
 
     /**
@@ -122,47 +231,946 @@ public class SimpleLayout extends AbstractLayout implements LayoutClickNotifier
      */
     @Override
     public void removeComponent(Component c) {
-        components.remove(c);
+        if (components.remove(c)) {
+            childRemoved(c);
+        }
         super.removeComponent(c);
         requestRepaint();
     }
 
+    /**
+     * Adds the given components after the current ones. All components are
+     * validated before the layout is changed, and only one repaint is
+     * requested.
+     * 
+     * @param newComponents
+     *            the components to be added
+     * @throws IllegalArgumentException
+     *             if a component is null, is given more than once, or is
+     *             this layout or one of its ancestors
+     */
+    public void addComponents(Collection<? extends Component> newComponents) {
+        checkNewComponents(newComponents);
+
+        beginBatch();
+        try {
+            for (Component c : newComponents) {
+                if (c.getParent() == this) {
+                    // Re-adding a child moves it to the end
+                    removeComponent(c);
+                }
+            }
+            components.addAll(newComponents);
+            for (Component c : newComponents) {
+                super.addComponent(c);
+                childInserted(c);
+                if (stripDimensions) {
+                    stripSize(c);
+                }
+            }
+            requestRepaint();
+        } finally {
+            endBatch();
+        }
+    }
+
+    /**
+     * Checks that the components can be added to this layout.
+     * 
+     * @throws IllegalArgumentException
+     *             if a component is null, is given more than once, or is
+     *             this layout or one of its ancestors
+     */
+    private void checkNewComponents(
+            Collection<? extends Component> newComponents) {
+        IdentityHashMap<Component, Boolean> seen = new IdentityHashMap<Component, Boolean>();
+        for (Component c : newComponents) {
+            if (c == null) {
+                throw new IllegalArgumentException(
+                        "Null components can not be added");
+            }
+            if (seen.put(c, Boolean.TRUE) != null) {
+                throw new IllegalArgumentException(
+                        "The same component can not be added twice");
+            }
+            for (Component parent = this; parent != null; parent = parent
+                    .getParent()) {
+                if (parent == c) {
+                    throw new IllegalArgumentException(
+                            "Component cannot be added inside it's own content");
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the given components from this layout with a single pass over
+     * the children and one repaint. Components that are not in this layout
+     * are ignored.
+     * 
+     * @param oldComponents
+     *            the components to be removed
+     */
+    public void removeComponents(Collection<? extends Component> oldComponents) {
+        List<Component> removed = new ArrayList<Component>();
+        IdentityHashMap<Component, Boolean> seen = new IdentityHashMap<Component, Boolean>();
+        for (Component c : oldComponents) {
+            if (components.contains(c) && seen.put(c, Boolean.TRUE) == null) {
+                removed.add(c);
+            }
+        }
+        if (removed.isEmpty()) {
+            return;
+        }
+
+        beginBatch();
+        try {
+            components.removeAll(removed);
+            for (Component c : removed) {
+                childRemoved(c);
+                super.removeComponent(c);
+            }
+            requestRepaint();
+        } finally {
+            endBatch();
+        }
+    }
+
+    /**
+     * Removes all components from this layout with one repaint.
+     */
+    @Override
+    public void removeAllComponents() {
+        removeComponents(new ArrayList<Component>(components));
+    }
+
+    /**
+     * Replaces the children of this layout with the components collected in
+     * the given builder, with one repaint. Children that are also in the
+     * builder stay attached and are only moved, the rest are removed.
+     * <p>
+     * Can be called from any thread: when the layout is attached, the change
+     * is made while holding the lock of the application, so the slow work of
+     * creating the components can be done in the builder without the lock. A
+     * layout that is not attached is changed without a lock, so it must not
+     * be attached by another thread during the swap.
+     * <p>
+     * The components are validated before the layout is changed, so a
+     * rejected builder leaves the layout untouched.
+     * 
+     * @param contents
+     *            the new children in their order
+     * @throws IllegalArgumentException
+     *             if the builder contains the same component twice, or this
+     *             layout or one of its ancestors
+     */
+    public void swapContents(ContentsBuilder contents) {
+        final List<Component> newComponents = contents.snapshot();
+
+        Application application = getApplication();
+        while (application != null) {
+            synchronized (application) {
+                // The layout may have been moved to another application or
+                // detached before the lock was acquired
+                if (getApplication() == application) {
+                    swapContents(newComponents);
+                    return;
+                }
+            }
+            application = getApplication();
+        }
+        swapContents(newComponents);
+    }
+
+    private void swapContents(final List<Component> newComponents) {
+        // The ancestors can only be checked while holding the lock
+        checkNewComponents(newComponents);
+        final IdentityHashMap<Component, Integer> positions = new IdentityHashMap<Component, Integer>();
+        for (Component c : newComponents) {
+            positions.put(c, positions.size());
+        }
+
+        batch(new Runnable() {
+            public void run() {
+                List<Component> removed = new ArrayList<Component>();
+                List<Component> added = new ArrayList<Component>();
+                for (Component c : components) {
+                    if (!positions.containsKey(c)) {
+                        removed.add(c);
+                    }
+                }
+                for (Component c : newComponents) {
+                    if (!components.contains(c)) {
+                        added.add(c);
+                    }
+                }
+                removeComponents(removed);
+                addComponents(added);
+                sortComponents(new Comparator<Component>() {
+                    public int compare(Component a, Component b) {
+                        return positions.get(a) - positions.get(b);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Runs the given changes as one transaction. Repaints requested by the
+     * changes are collected and a single repaint is requested when the
+     * outermost batch ends, even if the changes throw an exception.
+     * 
+     * @param changes
+     *            the changes to this layout
+     */
+    public void batch(Runnable changes) {
+        beginBatch();
+        try {
+            changes.run();
+        } finally {
+            endBatch();
+        }
+    }
+
+    private void beginBatch() {
+        batchDepth++;
+    }
+
+    private void endBatch() {
+        if (--batchDepth == 0 && repaintPending) {
+            repaintPending = false;
+            super.requestRepaint();
+        }
+    }
+
+    @Override
+    public void requestRepaint() {
+        if (SimpleLayoutMetrics.isCollecting()) {
+            SimpleLayoutMetrics.get().repaintRequested(this);
+        }
+        if (batchDepth > 0) {
+            repaintPending = true;
+        } else {
+            super.requestRepaint();
+        }
+    }
+
+    /**
+     * Removes the size of a component, unless it already has an undefined
+     * size, in which case the component is not repainted needlessly.
+     */
+    private void stripSize(Component c) {
+        if (c.getWidth() >= 0 || c.getHeight() >= 0) {
+            c.setSizeUndefined();
+        }
+    }
+
+    @Override
+    public void attach() {
+        super.attach();
+        // A (re)attached layout is rendered from scratch in the client
+        fullPaintPending = true;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        paintedChildren = new LinkedHashSet<Component>();
+        insertedChildren = new HashSet<Component>();
+        removedChildren = new HashSet<Component>();
+        // The painted state of the children is not known, so send everything
+        fullPaintPending = true;
+    }
+
+    /**
+     * Enables recycling of child widgets in the client. Widgets of removed
+     * children are kept, up to the given amount, and reused for new children
+     * of the same type instead of creating new widgets. This helps layouts
+     * whose children are frequently replaced, for example when paging or
+     * filtering a list.
+     * <p>
+     * A recycled widget is reset only by the complete update it receives as
+     * a new child, so this should only be enabled for child components whose
+     * widgets do not keep state from their previous use. Layouts and other
+     * containers are never recycled. Disabled (0) by default.
+     * 
+     * @param clientWidgetPoolSize
+     *            the maximum amount of released widgets kept in the client,
+     *            or 0 to disable recycling
+     */
+    public void setClientWidgetPoolSize(int clientWidgetPoolSize) {
+        if (clientWidgetPoolSize < 0) {
+            throw new IllegalArgumentException(
+                    "The pool size can not be negative");
+        }
+        if (this.clientWidgetPoolSize != clientWidgetPoolSize) {
+            this.clientWidgetPoolSize = clientWidgetPoolSize;
+            requestRepaint();
+        }
+    }
+
+    /**
+     * @return the maximum amount of released widgets kept in the client
+     * @see #setClientWidgetPoolSize(int)
+     */
+    public int getClientWidgetPoolSize() {
+        return clientWidgetPoolSize;
+    }
+
+    /**
+     * Enables or disables delta painting. When enabled, a repaint only sends
+     * the children that have been added, removed or moved since the previous
+     * paint instead of the complete list of children. The complete list is
+     * still sent when the layout is painted for the first time, after it has
+     * been reattached, and when the whole page is refreshed.
+     * 
+     * @param deltaPainting
+     *            true to send only the changes of the child list
+     */
+    public void setDeltaPainting(boolean deltaPainting) {
+        if (this.deltaPainting != deltaPainting) {
+            this.deltaPainting = deltaPainting;
+            fullPaintPending = true;
+            paintedChildren.clear();
+            insertedChildren.clear();
+            removedChildren.clear();
+        }
+    }
+
+    /**
+     * @return true if only the changes of the child list are sent on repaint
+     * @see #setDeltaPainting(boolean)
+     */
+    public boolean isDeltaPainting() {
+        return deltaPainting;
+    }
+
+    private void childInserted(Component c) {
+        childrenChanged = true;
+        if (deltaPainting) {
+            insertedChildren.add(c);
+        }
+    }
+
+    private void childRemoved(Component c) {
+        childrenChanged = true;
+        releaseCollapsed(c);
+        if (deltaPainting) {
+            insertedChildren.remove(c);
+            removedChildren.add(c);
+        }
+    }
+
     @Override
     public void paintContent(PaintTarget target) throws PaintException {
+        if (SimpleLayoutMetrics.isCollecting()) {
+            PaintTarget counting = CountingPaintTarget.wrap(target);
+            CountingPaintTarget.startScope(counting);
+            CountingPaintTarget.Scope scope;
+            try {
+                paintLayout(counting);
+            } finally {
+                scope = CountingPaintTarget.endScope(counting);
+            }
+            SimpleLayoutMetrics.get().painted(this, scope.nanos,
+                    components.size(), scope.characters);
+        } else {
+            paintLayout(target);
+        }
+    }
+
+    private void paintLayout(PaintTarget target) throws PaintException {
         super.paintContent(target);
 
         if (stripDimensions) {
             target.addAttribute("strip", true);
         }
+        if (clientWidgetPoolSize > 0) {
+            target.addAttribute("wpool", clientWidgetPoolSize);
+        }
+        if (incrementalRendering) {
+            target.addAttribute("incr", true);
+        }
+        if (lightweightCaptions) {
+            target.addAttribute("lcap", true);
+        }
 
-        // Adds all items in all the locations
-        for (Component c : components) {
-            // Paint child component UIDL
+        final boolean fullPaint = fullPaintPending || target.isFullRepaint();
+        if (virtualized) {
+            paintWindow(target);
+        } else if (progressiveAppend && !fullPaint && !childrenChanged) {
+            paintNextChunk(target);
+        } else if (deltaPainting && !staticCollapse && !fullPaint
+                && progressivePainted < 0
+                && insertedChildren.size() <= components.size() / 2) {
+            paintDelta(target);
+        } else {
+            int count = components.size();
+            if (progressiveChunkSize > 0 && fullPaint) {
+                count = Math.min(count, progressiveChunkSize);
+            } else if (progressiveChunkSize > 0 && progressivePainted >= 0) {
+                // Changed while the client is still fetching the children
+                count = Math.min(count,
+                        Math.max(progressiveChunkSize, progressivePainted));
+            }
+            // Adds all items in all the locations
+            paintChildren(target, 0, count);
+            if (deltaPainting) {
+                paintedChildren.clear();
+                paintedChildren.addAll(components.subList(0, count));
+            }
+            paintProgress(target, count);
+        }
+
+        insertedChildren.clear();
+        removedChildren.clear();
+        fullPaintPending = false;
+        progressiveAppend = false;
+        childrenChanged = false;
+    }
+
+    /**
+     * Paints the children in the given range. With static collapse, runs of
+     * collapsible children are painted as one "static" tag with their HTML.
+     */
+    private void paintChildren(PaintTarget target, int from, int to)
+            throws PaintException {
+        StringBuilder html = null;
+        int collapsed = 0;
+        for (int i = from; i < to; i++) {
+            Component c = components.get(i);
+            if (staticCollapse && isCollapsible(c)) {
+                if (collapsedChildren == null) {
+                    collapsedChildren = new HashSet<Component>();
+                    collapsedRepaintListener = new RepaintRequestListener() {
+                        public void repaintRequested(RepaintRequestEvent event) {
+                            requestRepaint();
+                        }
+                    };
+                }
+                if (collapsedChildren.add(c)) {
+                    c.addListener(collapsedRepaintListener);
+                }
+                // The label is painted as a part of the layout, so it must
+                // notify again on the next change like after its own paint
+                c.requestRepaintRequests();
+                if (html == null) {
+                    html = new StringBuilder();
+                }
+                appendStaticHtml(html, (Label) c);
+                collapsed++;
+            } else {
+                if (html != null) {
+                    paintStatic(target, html, collapsed);
+                    html = null;
+                    collapsed = 0;
+                }
+                if (releaseCollapsed(c)) {
+                    // The client has no widget for the child
+                    c.requestRepaint();
+                }
+                // Paint child component UIDL
+                c.paint(target);
+            }
+        }
+        if (html != null) {
+            paintStatic(target, html, collapsed);
+        }
+    }
+
+    /**
+     * Paints a run of collapsed children. The client needs the amount of
+     * children in the run for counting the children it has.
+     */
+    private static void paintStatic(PaintTarget target, StringBuilder html,
+            int count) throws PaintException {
+        target.startTag("static");
+        target.addAttribute("html", html.toString());
+        target.addAttribute("n", count);
+        target.endTag("static");
+    }
+
+    /**
+     * A child can be collapsed if it is a plain, visible and enabled Label
+     * without caption, icon, description, error or debug id, and it has no
+     * size that would need to be applied in the client.
+     */
+    private static boolean isCollapsible(Component c) {
+        if (c.getClass() != Label.class) {
+            return false;
+        }
+        Label label = (Label) c;
+        if (!label.isVisible() || !label.isEnabled()
+                || label.getCaption() != null || label.getIcon() != null
+                || label.getDescription() != null
+                || label.getComponentError() != null
+                || label.getDebugId() != null || label.getHeight() >= 0) {
+            return false;
+        }
+        // The default width of a Label is 100%, which a block element has
+        boolean fullWidth = label.getWidth() == 100
+                && label.getWidthUnits() == UNITS_PERCENTAGE;
+        if (label.getWidth() >= 0 && !fullWidth) {
+            return false;
+        }
+        switch (label.getContentMode()) {
+        case Label.CONTENT_TEXT:
+        case Label.CONTENT_PREFORMATTED:
+        case Label.CONTENT_XHTML:
+        case Label.CONTENT_RAW:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static void appendStaticHtml(StringBuilder html, Label label) {
+        html.append("<div class=\"v-label");
+        String styleName = label.getStyleName();
+        if (styleName != null) {
+            for (String style : styleName.split(" ")) {
+                if (style.length() > 0) {
+                    html.append(" v-label-").append(escapeHtml(style));
+                }
+            }
+        }
+        html.append("\">");
+        Object value = label.getValue();
+        String content = value == null ? "" : value.toString();
+        switch (label.getContentMode()) {
+        case Label.CONTENT_TEXT:
+            html.append(escapeHtml(content));
+            break;
+        case Label.CONTENT_PREFORMATTED:
+            html.append("<pre>").append(escapeHtml(content)).append("</pre>");
+            break;
+        default:
+            html.append(content);
+        }
+        html.append("</div>");
+    }
+
+    private static String escapeHtml(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+            case '<':
+                escaped.append("&lt;");
+                break;
+            case '>':
+                escaped.append("&gt;");
+                break;
+            case '&':
+                escaped.append("&amp;");
+                break;
+            case '"':
+                escaped.append("&quot;");
+                break;
+            default:
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Stops following the repaints of a collapsed child.
+     * 
+     * @return true if the child was collapsed
+     */
+    private boolean releaseCollapsed(Component c) {
+        if (collapsedChildren != null && collapsedChildren.remove(c)) {
+            c.removeListener(collapsedRepaintListener);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Enables or disables lightweight captions. By default the caption of
+     * each child is a separate widget in the client. With lightweight
+     * captions the layout renders the captions itself as plain elements
+     * placed before the child elements, which avoids an extra widget per
+     * captioned child and is faster for layouts where most children have a
+     * caption. The caption elements have the same class names as the caption
+     * widgets, but tooltips are not shown for the captions.
+     * <p>
+     * Changing the setting repaints all children, so it is best done before
+     * the layout is painted for the first time.
+     * 
+     * @param lightweightCaptions
+     *            true to render the captions as plain elements
+     */
+    public void setLightweightCaptions(boolean lightweightCaptions) {
+        if (this.lightweightCaptions != lightweightCaptions) {
+            this.lightweightCaptions = lightweightCaptions;
+            // The captions are recreated when the children are painted
+            for (Component c : components) {
+                c.requestRepaint();
+            }
+            requestRepaint();
+        }
+    }
+
+    /**
+     * @return true if the captions are rendered as plain elements
+     * @see #setLightweightCaptions(boolean)
+     */
+    public boolean isLightweightCaptions() {
+        return lightweightCaptions;
+    }
+
+    /**
+     * Enables or disables collapsing static children. When enabled, runs of
+     * consecutive plain Label children without caption, icon, description,
+     * error or size are painted as one block of HTML. The client inserts the
+     * block as is, without creating a widget for each label, which reduces
+     * the amount of paintables, the size of the response and the memory used
+     * in the client for text heavy layouts.
+     * <p>
+     * The labels are wrapped in an element with the
+     * <code>v-simplelayout-static</code> class name in the client. A change
+     * in a collapsed label repaints the whole layout. Delta painting is not
+     * used while collapsing is enabled, and virtualized layouts do not
+     * collapse their children.
+     * 
+     * @param staticCollapse
+     *            true to paint static labels as HTML
+     */
+    public void setStaticCollapse(boolean staticCollapse) {
+        if (this.staticCollapse != staticCollapse) {
+            this.staticCollapse = staticCollapse;
+            fullPaintPending = true;
+            requestRepaint();
+        }
+    }
+
+    /**
+     * @return true if static labels are painted as HTML
+     * @see #setStaticCollapse(boolean)
+     */
+    public boolean isStaticCollapse() {
+        return staticCollapse;
+    }
+
+    /**
+     * Paints the next chunk of children in progressive mode. The client
+     * appends them after the children it already has.
+     */
+    private void paintNextChunk(PaintTarget target) throws PaintException {
+        target.addAttribute("append", true);
+        int from = progressivePainted;
+        int to = Math.min(components.size(), from + progressiveChunkSize);
+        paintChildren(target, from, to);
+        if (deltaPainting) {
+            paintedChildren.addAll(components.subList(from, to));
+        }
+        paintProgress(target, to);
+    }
+
+    /**
+     * Marks the paint as incomplete if not all children were painted, in
+     * which case the client asks for the next chunk.
+     */
+    private void paintProgress(PaintTarget target, int painted)
+            throws PaintException {
+        if (painted < components.size()) {
+            target.addAttribute("more", true);
+            progressivePainted = painted;
+        } else {
+            progressivePainted = -1;
+        }
+    }
+
+    /**
+     * Enables or disables incremental rendering. When enabled, the client
+     * updates the children in short time slices and lets the browser handle
+     * user input between them, instead of blocking until all children have
+     * been updated. The children are placed in the layout immediately, and
+     * show their new state when their slice has been run. Disabled by
+     * default.
+     * 
+     * @param incrementalRendering
+     *            true to update the children in time slices
+     */
+    public void setIncrementalRendering(boolean incrementalRendering) {
+        if (this.incrementalRendering != incrementalRendering) {
+            this.incrementalRendering = incrementalRendering;
+            requestRepaint();
+        }
+    }
+
+    /**
+     * @return true if the client updates the children in time slices
+     * @see #setIncrementalRendering(boolean)
+     */
+    public boolean isIncrementalRendering() {
+        return incrementalRendering;
+    }
+
+    /**
+     * Enables progressive painting. When the layout is painted for the first
+     * time (or the page is refreshed), only the given amount of children is
+     * painted. The client shows them and then asks for the next chunk of
+     * children in a separate request, until all children have been painted.
+     * This reduces the time until the first children are visible in layouts
+     * with many children. Not used in virtualized mode.
+     * 
+     * @param progressiveChunkSize
+     *            the amount of children painted at a time, or 0 to paint all
+     *            children at once
+     */
+    public void setProgressiveChunkSize(int progressiveChunkSize) {
+        if (progressiveChunkSize < 0) {
+            throw new IllegalArgumentException(
+                    "The chunk size can not be negative");
+        }
+        this.progressiveChunkSize = progressiveChunkSize;
+        if (progressiveChunkSize == 0 && progressivePainted >= 0) {
+            // Paint the rest at once
+            requestRepaint();
+        }
+    }
+
+    /**
+     * @return the amount of children painted at a time, 0 if progressive
+     *         painting is disabled
+     * @see #setProgressiveChunkSize(int)
+     */
+    public int getProgressiveChunkSize() {
+        return progressiveChunkSize;
+    }
+
+    /**
+     * Paints the children in the current window together with the total
+     * amount of children, which the client uses for sizing the space of the
+     * children that are not painted.
+     */
+    private void paintWindow(PaintTarget target) throws PaintException {
+        if (fullPaintPending || target.isFullRepaint()) {
+            paintedChildren.clear();
+        }
+        int first = getVirtualWindowFirst();
+        int last = getVirtualWindowLast();
+
+        target.addAttribute("vtotal", getVirtualSize());
+        target.addAttribute("vfirst", first);
+
+        HashSet<Component> painted = new HashSet<Component>();
+        for (int i = first; i < last; i++) {
+            Component c = getVirtualComponent(i);
+            if (!paintedChildren.contains(c)) {
+                // The client has released the widget of this child (or never
+                // had one), so a cached reference is not enough
+                c.requestRepaint();
+            }
             c.paint(target);
+            painted.add(c);
         }
+        paintedChildren.clear();
+        paintedChildren.addAll(painted);
     }
 
-    public Iterator<Component> getComponentIterator() {
-        return components.iterator();
+    /**
+     * @return the index of the first child painted in virtualized mode
+     */
+    protected int getVirtualWindowFirst() {
+        return Math.max(0,
+                Math.min(windowFirst, getVirtualWindowLast() - virtualPageLength));
     }
 
-    public void replaceComponent(Component oldComponent, Component newComponent) {
-        // Gets the locations
-        int oldLocation = -1;
-        int newLocation = -1;
-        int location = 0;
-        for (final Iterator<Component> i = components.iterator(); i.hasNext();) {
-            final Component component = i.next();
-
-            if (component == oldComponent) {
-                oldLocation = location;
+    /**
+     * @return the index after the last child painted in virtualized mode
+     */
+    protected int getVirtualWindowLast() {
+        return Math.min(windowLast, getVirtualSize());
+    }
+
+    /**
+     * Returns the total amount of children in virtualized mode. Subclasses
+     * that create their children lazily return the amount of children that
+     * could be painted.
+     * 
+     * @return the amount of children
+     */
+    protected int getVirtualSize() {
+        return components.size();
+    }
+
+    /**
+     * Returns the child painted at the given index in virtualized mode.
+     * Called only for indexes inside the current window.
+     * 
+     * @param index
+     *            the index of the child, between
+     *            {@link #getVirtualWindowFirst()} and
+     *            {@link #getVirtualWindowLast()}
+     * @return the child component
+     */
+    protected Component getVirtualComponent(int index) {
+        return components.get(index);
+    }
+
+    /**
+     * Called when the window of children painted in virtualized mode has
+     * changed, before the repaint is requested. Does nothing by default.
+     */
+    protected void virtualWindowChanged() {
+    }
+
+    /**
+     * Enables or disables virtualized rendering. In virtualized mode only the
+     * children in a window around the visible part of the layout are painted.
+     * The client reports its scroll position, and the window follows it as
+     * the user scrolls. Widgets of children that move out of the window are
+     * released in the client.
+     * <p>
+     * The layout must have a height (defined on the server side or with CSS)
+     * so that the client can scroll it.
+     * <p>
+     * Children outside the window stay attached to the layout on the server
+     * side, but the client no longer has their widgets. A change in such a
+     * child, for example setting the value of a label, is still sent to the
+     * client as a change of that child, which the client can not apply and
+     * logs as an error. Children should therefore only be changed while they
+     * are in the window, or replaced instead of changed.
+     * 
+     * @param virtualized
+     *            true to paint only the children near the visible area
+     */
+    public void setVirtualized(boolean virtualized) {
+        if (this.virtualized != virtualized) {
+            this.virtualized = virtualized;
+            windowFirst = 0;
+            windowLast = virtualPageLength;
+            fullPaintPending = true;
+            paintedChildren.clear();
+            virtualWindowChanged();
+            requestRepaint();
+        }
+    }
+
+    /**
+     * @return true if only the children near the visible area are painted
+     * @see #setVirtualized(boolean)
+     */
+    public boolean isVirtualized() {
+        return virtualized;
+    }
+
+    /**
+     * Sets the minimum amount of children painted at a time in virtualized
+     * mode. Half of the amount is also painted before and after the visible
+     * children. The default is 100.
+     * 
+     * @param virtualPageLength
+     *            the amount of children
+     */
+    public void setVirtualPageLength(int virtualPageLength) {
+        if (virtualPageLength < 1) {
+            throw new IllegalArgumentException(
+                    "The page length must be at least 1");
+        }
+        this.virtualPageLength = virtualPageLength;
+        if (virtualized) {
+            windowLast = Math.max(windowLast, windowFirst + virtualPageLength);
+            virtualWindowChanged();
+            requestRepaint();
+        }
+    }
+
+    /**
+     * @return the minimum amount of children painted in virtualized mode
+     * @see #setVirtualPageLength(int)
+     */
+    public int getVirtualPageLength() {
+        return virtualPageLength;
+    }
+
+    @Override
+    public void changeVariables(Object source, Map<String, Object> variables) {
+        super.changeVariables(source, variables);
+
+        if (variables.containsKey("chunk")
+                && (Integer) variables.get("chunk") == progressivePainted) {
+            progressiveAppend = true;
+            requestRepaint();
+        }
+
+        if (virtualized && variables.containsKey("vfirst")
+                && variables.containsKey("vlast")) {
+            int first = (Integer) variables.get("vfirst");
+            int last = (Integer) variables.get("vlast");
+            int margin = virtualPageLength / 2;
+            int newFirst = Math.max(0, first - margin);
+            int newLast = Math.max(last + margin, newFirst + virtualPageLength);
+            if (newFirst != windowFirst || newLast != windowLast) {
+                windowFirst = newFirst;
+                windowLast = newLast;
+                virtualWindowChanged();
+                requestRepaint();
             }
-            if (component == newComponent) {
-                newLocation = location;
+        }
+    }
+
+    /**
+     * Paints the changes of the child list since the previous paint as "rm"
+     * and "ins" operations.
+     */
+    private void paintDelta(PaintTarget target) throws PaintException {
+        target.addAttribute("delta", true);
+        if (removedChildren.isEmpty() && insertedChildren.isEmpty()) {
+            return;
+        }
+
+        // Removed children are detached, and the terminal releases their
+        // paintable IDs before painting, so they are identified by their
+        // position in the children the client had before this paint
+        if (!removedChildren.isEmpty()) {
+            int pos = 0;
+            for (Component c : paintedChildren) {
+                if (removedChildren.contains(c) && !components.contains(c)) {
+                    target.startTag("rm");
+                    target.addAttribute("i", pos);
+                    target.endTag("rm");
+                }
+                pos++;
             }
+        }
 
-            location++;
+        // Insert from the last to the first, so that the following sibling of
+        // each inserted child is already in its final place in the client.
+        int[] positions = new int[insertedChildren.size()];
+        int count = 0;
+        for (Component c : insertedChildren) {
+            positions[count++] = components.indexOf(c);
         }
+        Arrays.sort(positions);
+        for (int i = count - 1; i >= 0; i--) {
+            int pos = positions[i];
+            Component c = components.get(pos);
+            target.startTag("ins");
+            if (pos + 1 < components.size()) {
+                target.addAttribute("before", components.get(pos + 1));
+            }
+            c.paint(target);
+            target.endTag("ins");
+        }
+
+        // The client now has the children in the same order
+        paintedChildren.clear();
+        paintedChildren.addAll(components);
+    }
+
+    public Iterator<Component> getComponentIterator() {
+        return components.iterator();
+    }
+
+    public void replaceComponent(Component oldComponent, Component newComponent) {
+        // Gets the locations
+        int oldLocation = components.indexOf(oldComponent);
+        int newLocation = components.indexOf(newComponent);
 
         if (oldLocation == -1) {
             addComponent(newComponent);
@@ -170,22 +1178,78 @@ public class SimpleLayout extends AbstractLayout implements LayoutClickNotifier
             removeComponent(oldComponent);
             addComponent(newComponent, oldLocation);
         } else {
-            if (oldLocation > newLocation) {
-                components.remove(oldComponent);
-                components.add(newLocation, oldComponent);
-                components.remove(newComponent);
-                components.add(oldLocation, newComponent);
-            } else {
-                components.remove(newComponent);
-                components.add(oldLocation, newComponent);
-                components.remove(oldComponent);
-                components.add(newLocation, oldComponent);
-            }
+            indexedComponents.swap(oldLocation, newLocation);
+            childInserted(oldComponent);
+            childInserted(newComponent);
+            requestRepaint();
+        }
+    }
 
+    /**
+     * Moves a child to the given position. The child stays attached, and with
+     * delta painting only the move is sent to the client.
+     * 
+     * @param c
+     *            the child to move
+     * @param index
+     *            the new position of the child, from 0 to size() - 1
+     * @throws IllegalArgumentException
+     *             if the component is not a child of this layout
+     * @throws IndexOutOfBoundsException
+     *             if the index is out of range
+     */
+    public void moveComponent(Component c, int index) {
+        int oldIndex = components.indexOf(c);
+        if (oldIndex < 0) {
+            throw new IllegalArgumentException(
+                    "The component is not a child of this layout");
+        }
+        if (index < 0 || index >= components.size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+                    + components.size());
+        }
+        if (oldIndex != index) {
+            components.remove(oldIndex);
+            components.add(index, c);
+            childInserted(c);
             requestRepaint();
         }
     }
 
+    /**
+     * Sorts the children with the given comparator. The sort is stable and
+     * the children stay attached. With delta painting only the minimal set of
+     * moves is sent to the client: the children on a longest run that is
+     * already in the right order keep their place.
+     * 
+     * @param comparator
+     *            the comparator defining the new order
+     */
+    public void sortComponents(Comparator<? super Component> comparator) {
+        List<Component> sorted = new ArrayList<Component>(components);
+        Collections.sort(sorted, comparator);
+
+        int[] positions = new int[sorted.size()];
+        boolean changed = false;
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = components.indexOf(sorted.get(i));
+            changed |= positions[i] != i;
+        }
+        if (!changed) {
+            return;
+        }
+
+        boolean[] inPlace = LongestIncreasingSubsequence.find(positions);
+        indexedComponents.reorder(sorted
+                .toArray(new Component[sorted.size()]));
+        for (int i = 0; i < inPlace.length; i++) {
+            if (!inPlace[i]) {
+                childInserted(sorted.get(i));
+            }
+        }
+        requestRepaint();
+    }
+
     /**
      * Returns the index of the given component.
      * 
@@ -0,0 +1,273 @@
+package org.vaadin.simplelayout;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.vaadin.Application;
+
+/**
+ * Paint and repaint metrics of all {@link SimpleLayout}s in the JVM. The
+ * metrics are aggregated for all layouts, for each application class and for
+ * each style name, using atomic counters that are safe to update from
+ * concurrent sessions.
+ * <p>
+ * Collection is disabled by default. Enable it with
+ * {@link #setEnabled(boolean)}, through JMX, or by starting the JVM with
+ * <code>-Dsimplelayout.metrics=true</code>. The metrics are registered in the
+ * platform MBean server as <code>org.vaadin.simplelayout:type=Metrics</code>.
+ * <p>
+ * The MBean server keeps a reference to the metrics, and so to the class
+ * loader of the web application, until {@link #unregister()} is called. Call
+ * it when the application is undeployed, for example from a
+ * <code>ServletContextListener</code>:
+ * 
+ * <pre>
+ * public void contextDestroyed(ServletContextEvent event) {
+ *     SimpleLayoutMetrics.get().unregister();
+ * }
+ * </pre>
+ */
+public class SimpleLayoutMetrics implements SimpleLayoutMetricsMBean {
+
+    private static final String OBJECT_NAME = "org.vaadin.simplelayout:type=Metrics";
+
+    private static final SimpleLayoutMetrics instance = new SimpleLayoutMetrics();
+
+    private static volatile boolean enabled = Boolean
+            .getBoolean("simplelayout.metrics");
+
+    static {
+        if (enabled) {
+            instance.register();
+        }
+    }
+
+    /**
+     * Counters of a group of layouts.
+     */
+    private static class Stats {
+        private final String name;
+        private final AtomicLong repaintRequests = new AtomicLong();
+        private final AtomicLong paints = new AtomicLong();
+        private final AtomicLong paintNanos = new AtomicLong();
+        private final AtomicLong maxPaintNanos = new AtomicLong();
+        private final AtomicLong children = new AtomicLong();
+        private final AtomicLong maxChildren = new AtomicLong();
+        private final AtomicLong uidlCharacters = new AtomicLong();
+
+        private Stats(String name) {
+            this.name = name;
+        }
+
+        private void painted(long nanos, int childCount, long characters) {
+            paints.incrementAndGet();
+            paintNanos.addAndGet(nanos);
+            updateMax(maxPaintNanos, nanos);
+            children.addAndGet(childCount);
+            updateMax(maxChildren, childCount);
+            uidlCharacters.addAndGet(characters);
+        }
+
+        private static void updateMax(AtomicLong max, long value) {
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        @Override
+        public String toString() {
+            long paintCount = paints.get();
+            return name + ": repaintRequests=" + repaintRequests.get()
+                    + " paints=" + paintCount + " paintTime="
+                    + paintNanos.get() / 1000000 + "ms maxPaintTime="
+                    + maxPaintNanos.get() / 1000000 + "ms avgChildren="
+                    + (paintCount > 0 ? children.get() / paintCount : 0)
+                    + " maxChildren=" + maxChildren.get()
+                    + " uidlCharacters=" + uidlCharacters.get();
+        }
+    }
+
+    private final Stats total = new Stats("total");
+
+    private final ConcurrentMap<String, Stats> byApplication = new ConcurrentHashMap<String, Stats>();
+
+    private final ConcurrentMap<String, Stats> byStyle = new ConcurrentHashMap<String, Stats>();
+
+    private boolean registered = false;
+
+    private SimpleLayoutMetrics() {
+    }
+
+    /**
+     * @return the metrics of all layouts in the JVM
+     */
+    public static SimpleLayoutMetrics get() {
+        return instance;
+    }
+
+    /**
+     * Checked by the layouts before collecting anything, so disabled metrics
+     * cost one volatile read.
+     * 
+     * @return true if metrics are being collected
+     */
+    static boolean isCollecting() {
+        return enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        SimpleLayoutMetrics.enabled = enabled;
+        if (enabled) {
+            register();
+        }
+    }
+
+    private synchronized void register() {
+        if (registered) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            // Another web application may have registered its own metrics,
+            // which must not be unregistered by this one
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+                registered = true;
+            }
+        } catch (Exception e) {
+            Logger.getLogger(SimpleLayoutMetrics.class.getName()).log(
+                    Level.WARNING, "Could not register " + OBJECT_NAME, e);
+        }
+    }
+
+    /**
+     * Removes the metrics from the platform MBean server. Collection can be
+     * enabled again, which registers the metrics again.
+     */
+    public synchronized void unregister() {
+        enabled = false;
+        if (!registered) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (Exception e) {
+            Logger.getLogger(SimpleLayoutMetrics.class.getName()).log(
+                    Level.WARNING, "Could not unregister " + OBJECT_NAME, e);
+        }
+        registered = false;
+    }
+
+    void repaintRequested(SimpleLayout layout) {
+        total.repaintRequests.incrementAndGet();
+        getStats(byApplication, getApplicationName(layout)).repaintRequests
+                .incrementAndGet();
+        getStats(byStyle, getStyleName(layout)).repaintRequests
+                .incrementAndGet();
+    }
+
+    void painted(SimpleLayout layout, long nanos, int childCount,
+            long characters) {
+        total.painted(nanos, childCount, characters);
+        getStats(byApplication, getApplicationName(layout)).painted(nanos,
+                childCount, characters);
+        getStats(byStyle, getStyleName(layout)).painted(nanos, childCount,
+                characters);
+    }
+
+    private static String getApplicationName(SimpleLayout layout) {
+        Application application = layout.getApplication();
+        return application != null ? application.getClass().getName() : "-";
+    }
+
+    private static String getStyleName(SimpleLayout layout) {
+        String styleName = layout.getStyleName();
+        return styleName != null && styleName.length() > 0 ? styleName : "-";
+    }
+
+    private static Stats getStats(ConcurrentMap<String, Stats> map, String key) {
+        Stats stats = map.get(key);
+        if (stats == null) {
+            Stats newStats = new Stats(key);
+            stats = map.putIfAbsent(key, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+    public long getRepaintRequests() {
+        return total.repaintRequests.get();
+    }
+
+    public long getPaints() {
+        return total.paints.get();
+    }
+
+    public long getPaintTimeMillis() {
+        return total.paintNanos.get() / 1000000;
+    }
+
+    public long getUidlCharacters() {
+        return total.uidlCharacters.get();
+    }
+
+    public String[] getApplicationStatistics() {
+        return toStrings(byApplication);
+    }
+
+    public String[] getStyleStatistics() {
+        return toStrings(byStyle);
+    }
+
+    private static String[] toStrings(Map<String, Stats> map) {
+        List<Stats> list = new ArrayList<Stats>(map.values());
+        Collections.sort(list, new Comparator<Stats>() {
+            public int compare(Stats a, Stats b) {
+                long x = a.paintNanos.get();
+                long y = b.paintNanos.get();
+                return x > y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        String[] strings = new String[list.size()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = list.get(i).toString();
+        }
+        return strings;
+    }
+
+    public void reset() {
+        byApplication.clear();
+        byStyle.clear();
+        total.repaintRequests.set(0);
+        total.paints.set(0);
+        total.paintNanos.set(0);
+        total.maxPaintNanos.set(0);
+        total.children.set(0);
+        total.maxChildren.set(0);
+        total.uidlCharacters.set(0);
+    }
+}
@@ -0,0 +1,53 @@
+package org.vaadin.simplelayout;
+
+/**
+ * JMX management interface of {@link SimpleLayoutMetrics}.
+ */
+public interface SimpleLayoutMetricsMBean {
+
+    /**
+     * @return true if the metrics are being collected
+     */
+    public boolean isEnabled();
+
+    /**
+     * @param enabled
+     *            true to collect metrics
+     */
+    public void setEnabled(boolean enabled);
+
+    /**
+     * @return the amount of repaints requested by all layouts
+     */
+    public long getRepaintRequests();
+
+    /**
+     * @return the amount of paintContent calls of all layouts
+     */
+    public long getPaints();
+
+    /**
+     * @return the total time spent in paintContent, in milliseconds
+     */
+    public long getPaintTimeMillis();
+
+    /**
+     * @return the estimated total amount of UIDL characters painted
+     */
+    public long getUidlCharacters();
+
+    /**
+     * @return the statistics of each application, most expensive first
+     */
+    public String[] getApplicationStatistics();
+
+    /**
+     * @return the statistics of each style name, most expensive first
+     */
+    public String[] getStyleStatistics();
+
+    /**
+     * Clears all collected statistics.
+     */
+    public void reset();
+}
@@ -0,0 +1,63 @@
+package org.vaadin.simplelayout.client.ui;
+
+/**
+ * Finds a longest strictly increasing subsequence of old positions. Used when
+ * reordering children: the children on the subsequence keep their place and
+ * only the rest are moved, which gives the minimal amount of moves.
+ * <p>
+ * Shared by the client and the server side, so this class must stay GWT
+ * compatible.
+ */
+public class LongestIncreasingSubsequence {
+
+	private LongestIncreasingSubsequence() {
+	}
+
+	/**
+	 * Marks the members of a longest increasing subsequence.
+	 *
+	 * @param positions
+	 *            the old position of each item in the new order, or a
+	 *            negative value for new items, which are never part of the
+	 *            subsequence
+	 * @return an array where the items that can stay in place are true
+	 */
+	public static boolean[] find(int[] positions) {
+		final int n = positions.length;
+		// tails[k] is the index of the smallest tail of an increasing
+		// subsequence of length k + 1
+		final int[] tails = new int[n];
+		final int[] previous = new int[n];
+		int length = 0;
+
+		for (int i = 0; i < n; i++) {
+			previous[i] = -1;
+			if (positions[i] < 0) {
+				continue;
+			}
+			int low = 0;
+			int high = length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (positions[tails[mid]] < positions[i]) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			if (low > 0) {
+				previous[i] = tails[low - 1];
+			}
+			tails[low] = i;
+			if (low == length) {
+				length++;
+			}
+		}
+
+		final boolean[] result = new boolean[n];
+		for (int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = previous[i]) {
+			result[i] = true;
+		}
+		return result;
+	}
+}
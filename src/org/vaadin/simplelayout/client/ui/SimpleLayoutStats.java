@@ -0,0 +1,91 @@
+package org.vaadin.simplelayout.client.ui;
+
+import com.google.gwt.core.client.GWT;
+
+/**
+ * Render instrumentation for {@link VSimpleLayout}. This default
+ * implementation does nothing and is removed by the GWT compiler, so the
+ * instrumentation costs nothing unless it is enabled.
+ * <p>
+ * Enable it by setting the <code>simplelayout.stats</code> property to
+ * <code>on</code> in the widgetset:
+ * 
+ * <pre>
+ * &lt;set-property name="simplelayout.stats" value="on" /&gt;
+ * </pre>
+ * 
+ * The collected counters and timings are then logged to the debug console
+ * and can be read from JavaScript with
+ * <code>window.simpleLayoutStats.dump()</code>.
+ * 
+ * @see SimpleLayoutStatsImpl
+ */
+public class SimpleLayoutStats {
+
+	/** Widgets inserted or moved in the DOM */
+	public static final int INSERT_WIDGET = 0;
+
+	/** Children removed from a layout */
+	public static final int REMOVE_CHILD = 1;
+
+	/** Reads through ComputedStyle */
+	public static final int COMPUTED_STYLE_READ = 2;
+
+	/** CSS rules added to the stylesheet */
+	public static final int CSS_RULE_CREATE = 3;
+
+	/** VCaption widgets created */
+	public static final int CAPTION_CREATE = 4;
+
+	/** Calls to Util.runWebkitOverflowAutoFix */
+	public static final int OVERFLOW_FIX = 5;
+
+	/** Child widgets reused from the recycling pool */
+	public static final int RECYCLE_WIDGET = 6;
+
+	static final String[] COUNTER_NAMES = { "insertWidget", "removeChild",
+			"computedStyleRead", "cssRuleCreate", "captionCreate",
+			"overflowFix", "recycleWidget" };
+
+	private static final SimpleLayoutStats instance = GWT
+			.create(SimpleLayoutStats.class);
+
+	/**
+	 * @return the instrumentation in use
+	 */
+	public static SimpleLayoutStats get() {
+		return instance;
+	}
+
+	/**
+	 * Increases a counter.
+	 * 
+	 * @param layout
+	 *            the layout the event happened in, or null if it is not
+	 *            specific to one layout
+	 * @param counter
+	 *            one of the counter constants
+	 */
+	public void count(VSimpleLayout layout, int counter) {
+	}
+
+	/**
+	 * Called when a layout starts handling an update from the server.
+	 * 
+	 * @return a value to pass to {@link #updateFinished(VSimpleLayout, double)}
+	 */
+	public double updateStarted() {
+		return 0;
+	}
+
+	/**
+	 * Called when a layout has handled an update from the server.
+	 * 
+	 * @param layout
+	 *            the updated layout
+	 * @param started
+	 *            the value returned by {@link #updateStarted()}
+	 */
+	public void updateFinished(VSimpleLayout layout, double started) {
+	}
+}
@@ -0,0 +1,119 @@
+package org.vaadin.simplelayout.client.ui;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.gwt.core.client.Duration;
+import com.vaadin.terminal.gwt.client.VConsole;
+
+/**
+ * Collecting implementation of {@link SimpleLayoutStats}, used when the
+ * <code>simplelayout.stats</code> property is <code>on</code>. Counters and
+ * update timings are kept for each layout, identified by its paintable id,
+ * and for all layouts together.
+ */
+public class SimpleLayoutStatsImpl extends SimpleLayoutStats {
+
+	private static class Counters {
+		private final int[] counts = new int[COUNTER_NAMES.length];
+		private int updates = 0;
+		private double updateTime = 0;
+		private double maxUpdateTime = 0;
+
+		private void update(double time) {
+			updates++;
+			updateTime += time;
+			maxUpdateTime = Math.max(maxUpdateTime, time);
+		}
+
+		private void appendTo(StringBuilder sb) {
+			sb.append("updates=").append(updates);
+			sb.append(" time=").append(updateTime).append("ms");
+			sb.append(" max=").append(maxUpdateTime).append("ms");
+			for (int i = 0; i < counts.length; i++) {
+				sb.append(' ').append(COUNTER_NAMES[i]).append('=')
+						.append(counts[i]);
+			}
+		}
+	}
+
+	private Counters global = new Counters();
+
+	private Map<String, Counters> layouts = new HashMap<String, Counters>();
+
+	public SimpleLayoutStatsImpl() {
+		export();
+	}
+
+	private Counters getCounters(VSimpleLayout layout) {
+		String id = layout.paintableId != null ? layout.paintableId : "-";
+		Counters counters = layouts.get(id);
+		if (counters == null) {
+			counters = new Counters();
+			layouts.put(id, counters);
+		}
+		return counters;
+	}
+
+	@Override
+	public void count(VSimpleLayout layout, int counter) {
+		global.counts[counter]++;
+		if (layout != null) {
+			getCounters(layout).counts[counter]++;
+		}
+	}
+
+	@Override
+	public double updateStarted() {
+		return Duration.currentTimeMillis();
+	}
+
+	@Override
+	public void updateFinished(VSimpleLayout layout, double started) {
+		double time = Duration.currentTimeMillis() - started;
+		global.update(time);
+		getCounters(layout).update(time);
+		if (time >= 10) {
+			VConsole.log("SimpleLayout " + layout.paintableId + " updated in "
+					+ time + "ms");
+		}
+	}
+
+	/**
+	 * Logs the statistics to the debug console.
+	 * 
+	 * @return the statistics as text, one line per layout
+	 */
+	public String dump() {
+		StringBuilder sb = new StringBuilder("SimpleLayout total: ");
+		global.appendTo(sb);
+		for (Map.Entry<String, Counters> entry : layouts.entrySet()) {
+			sb.append("\nSimpleLayout ").append(entry.getKey()).append(": ");
+			entry.getValue().appendTo(sb);
+		}
+		String stats = sb.toString();
+		VConsole.log(stats);
+		return stats;
+	}
+
+	/**
+	 * Clears all statistics.
+	 */
+	public void reset() {
+		global = new Counters();
+		layouts = new HashMap<String, Counters>();
+	}
+
+	private native void export()
+	/*-{
+		var stats = this;
+		$wnd.simpleLayoutStats = {
+			dump: $entry(function() {
+				return stats.@org.vaadin.simplelayout.client.ui.SimpleLayoutStatsImpl::dump()();
+			}),
+			reset: $entry(function() {
+				stats.@org.vaadin.simplelayout.client.ui.SimpleLayoutStatsImpl::reset()();
+			})
+		};
+	}-*/;
+}
@@ -0,0 +1,109 @@
+package org.vaadin.simplelayout.client.ui;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.vaadin.csstools.client.CSSRule;
+
+/**
+ * Pool of CSS rules that set the size of layouts. Layouts with the same size
+ * share one rule, which is reference counted. A rule that is no longer
+ * referenced is kept and reused for the next size that has no rule yet, so
+ * the stylesheet only grows up to the amount of distinct sizes in use at the
+ * same time.
+ */
+public class SizeRulePool {
+
+	private static final String CLASSNAME_PREFIX = VSimpleLayout.CLASSNAME
+			+ "-size-";
+
+	private static class SharedRule {
+		private final CSSRule rule;
+		private final String className;
+		private String key;
+		private String property;
+		private int references = 0;
+
+		private SharedRule(String className) {
+			this.className = className;
+			rule = CSSRule.create("." + className);
+			SimpleLayoutStats.get().count(null,
+					SimpleLayoutStats.CSS_RULE_CREATE);
+		}
+	}
+
+	/** Referenced rules by property and value */
+	private static final HashMap<String, SharedRule> liveRules = new HashMap<String, SharedRule>();
+
+	/** Referenced rules by class name */
+	private static final HashMap<String, SharedRule> classNameToRule = new HashMap<String, SharedRule>();
+
+	/** Rules that are not referenced and can be reused for another size */
+	private static final ArrayList<SharedRule> freeRules = new ArrayList<SharedRule>();
+
+	private static int ruleCount = 0;
+
+	private SizeRulePool() {
+	}
+
+	/**
+	 * Returns the class name of a rule setting the given property to the
+	 * given value, and increases the reference count of the rule.
+	 *
+	 * @param property
+	 *            camelCase CSS property name
+	 * @param value
+	 *            the value of the property
+	 * @return the class name to add to the element
+	 */
+	public static String acquire(String property, String value) {
+		final String key = property + ":" + value;
+		SharedRule shared = liveRules.get(key);
+		if (shared == null) {
+			if (freeRules.isEmpty()) {
+				shared = new SharedRule(CLASSNAME_PREFIX + ruleCount++);
+			} else {
+				shared = freeRules.remove(freeRules.size() - 1);
+				shared.rule.setProperty(shared.property, "");
+			}
+			shared.key = key;
+			shared.property = property;
+			shared.rule.setProperty(property, value);
+			liveRules.put(key, shared);
+			classNameToRule.put(shared.className, shared);
+		}
+		shared.references++;
+		return shared.className;
+	}
+
+	/**
+	 * Decreases the reference count of the rule with the given class name.
+	 * The rule is freed for reuse when it is no longer referenced.
+	 *
+	 * @param className
+	 *            a class name returned by {@link #acquire(String, String)}
+	 */
+	public static void release(String className) {
+		final SharedRule shared = classNameToRule.get(className);
+		if (shared != null && --shared.references == 0) {
+			liveRules.remove(shared.key);
+			classNameToRule.remove(className);
+			freeRules.add(shared);
+		}
+	}
+
+	/**
+	 * @return the amount of rules currently referenced by layouts
+	 */
+	public static int getLiveRuleCount() {
+		return liveRules.size();
+	}
+
+	/**
+	 * @return the amount of rules added to the stylesheet, including the
+	 *         free ones
+	 */
+	public static int getRuleCount() {
+		return ruleCount;
+	}
+}
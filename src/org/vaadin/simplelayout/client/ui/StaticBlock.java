@@ -0,0 +1,35 @@
+package org.vaadin.simplelayout.client.ui;
+
+import com.google.gwt.dom.client.Document;
+import com.google.gwt.user.client.ui.Widget;
+
+/**
+ * A block of pre-rendered HTML for the static children collapsed by the
+ * server side layout. Not a paintable, the block is matched to the UIDL by
+ * its HTML.
+ */
+class StaticBlock extends Widget {
+
+	static final String CLASSNAME = VSimpleLayout.CLASSNAME + "-static";
+
+	private final String html;
+
+	/** The amount of server side children in the block */
+	private final int size;
+
+	StaticBlock(String html, int size) {
+		this.html = html;
+		this.size = size;
+		setElement(Document.get().createDivElement());
+		setStyleName(CLASSNAME);
+		getElement().setInnerHTML(html);
+	}
+
+	String getHtml() {
+		return html;
+	}
+
+	int getSize() {
+		return size;
+	}
+}
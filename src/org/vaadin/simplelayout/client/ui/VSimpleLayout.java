@@ -1,17 +1,24 @@
 package org.vaadin.simplelayout.client.ui;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Set;
 
 import org.vaadin.csstools.client.CSSRule;
 import org.vaadin.csstools.client.ComputedStyle;
 
+import com.google.gwt.core.client.Duration;
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.RepeatingCommand;
+import com.google.gwt.core.client.Scheduler.ScheduledCommand;
 import com.google.gwt.dom.client.Document;
 import com.google.gwt.dom.client.Element;
+import com.google.gwt.dom.client.Node;
 import com.google.gwt.event.dom.client.DomEvent.Type;
 import com.google.gwt.event.shared.EventHandler;
 import com.google.gwt.event.shared.HandlerRegistration;
-import com.google.gwt.user.client.DOM;
+import com.google.gwt.safehtml.shared.SafeHtmlUtils;
 import com.google.gwt.user.client.ui.ComplexPanel;
 import com.google.gwt.user.client.ui.Widget;
 import com.vaadin.terminal.gwt.client.ApplicationConnection;
@@ -49,9 +56,21 @@ public class VSimpleLayout extends ComplexPanel implements Container {
 		}
 	};
 
+	/**
+	 * Returns the child containing the given element. Only walks up to the
+	 * root element of the child, which is then looked up in the index.
+	 */
 	private Paintable getComponent(Element element) {
-		return Util.getChildPaintableForElement(client, VSimpleLayout.this,
-				(com.google.gwt.user.client.Element) element.cast());
+		final Element root = getElement();
+		while (element != null && element != root) {
+			Widget child = elementToChild.get(element);
+			if (child != null) {
+				// Static blocks have no server side component
+				return child instanceof Paintable ? (Paintable) child : null;
+			}
+			element = element.getParentElement();
+		}
+		return null;
 	}
 
 	/** Current margin values */
@@ -77,6 +96,42 @@ public class VSimpleLayout extends ComplexPanel implements Container {
 
 	private String lastStyleName;
 
+	/** True when margin, border and padding match the current style */
+	private boolean extraSizeInfoValid = false;
+
+	/** The theme the margin, border and padding were read with */
+	private String extraSizeInfoTheme;
+
+	/**
+	 * Outer size measured the last time, used for telling the parent whether
+	 * a change in the children changed the size of this layout. -1 if not
+	 * measured yet.
+	 */
+	private int lastOffsetWidth = -1;
+	private int lastOffsetHeight = -1;
+
+	/** True when this layout is in the measure queue */
+	private boolean actualSizeQueued = false;
+
+	/** Layouts waiting for their actual size to be measured */
+	private static final ArrayList<VSimpleLayout> measureQueue = new ArrayList<VSimpleLayout>();
+
+	/** Measures all queued layouts in one read phase */
+	private static final ScheduledCommand measureCommand = new ScheduledCommand() {
+		public void execute() {
+			ArrayList<VSimpleLayout> queue = new ArrayList<VSimpleLayout>(
+					measureQueue);
+			measureQueue.clear();
+			for (VSimpleLayout layout : queue) {
+				layout.actualSizeQueued = false;
+				if (layout.isAttached()) {
+					layout.ensureExtraSizeInfo();
+					layout.updateActualSize();
+				}
+			}
+		}
+	};
+
 	private boolean hasWidth = false;
 
 	private boolean hasHeight = false;
@@ -87,10 +142,161 @@ public class VSimpleLayout extends ComplexPanel implements Container {
 
 	private static boolean floatAdded = false;
 
-	protected CSSRule css = null;
+	/** Current width and height set through shared size rules */
+	private String widthRuleValue = null;
+	private String heightRuleValue = null;
+
+	/** Class names of the shared size rules applied to the element */
+	private String widthRuleClass = null;
+	private String heightRuleClass = null;
 
 	private final HashMap<Widget, VCaption> widgetToCaption = new HashMap<Widget, VCaption>();
 
+	/**
+	 * Child by its root element. The elements of captions map to the owner of
+	 * the caption.
+	 */
+	private final HashMap<Element, Widget> elementToChild = new HashMap<Element, Widget>();
+
+	private static final String CAPTION_CLASSNAME = "v-caption";
+
+	/** Captions are plain elements instead of VCaption widgets */
+	private boolean lightweightCaptions = false;
+
+	/** Lightweight caption elements by their owner */
+	private final HashMap<Widget, Element> captionElements = new HashMap<Widget, Element>();
+
+	/** Children with a relative width or height */
+	private final HashSet<Widget> relativeSizeChildren = new HashSet<Widget>();
+
+	private boolean overflowFixPending = false;
+
+	private boolean relativeSizesPending = false;
+
+	private boolean layoutCommandScheduled = false;
+
+	/**
+	 * Runs the requested relative size updates and overflow fix once, no
+	 * matter how many times they were requested while handling the event.
+	 */
+	private final ScheduledCommand layoutCommand = new ScheduledCommand() {
+		public void execute() {
+			layoutCommandScheduled = false;
+			if (!isAttached()) {
+				overflowFixPending = false;
+				relativeSizesPending = false;
+				return;
+			}
+			if (relativeSizesPending) {
+				relativeSizesPending = false;
+				updateRelativeSizes();
+			}
+			if (overflowFixPending) {
+				overflowFixPending = false;
+				runWebkitOverflowAutoFix();
+			}
+		}
+	};
+
+	/** Maximum amount of released widgets kept for reuse, 0 if disabled */
+	private int widgetPoolSize = 0;
+
+	private int pooledWidgetCount = 0;
+
+	/** Released child widgets by their class */
+	private final HashMap<Class<?>, ArrayList<Widget>> widgetPool = new HashMap<Class<?>, ArrayList<Widget>>();
+
+	/**
+	 * The widget class created for each child UIDL tag. Null for tags that
+	 * have produced widgets of different classes.
+	 */
+	private final HashMap<String, Class<?>> tagToWidgetClass = new HashMap<String, Class<?>>();
+
+	/**
+	 * Asks the server for the next chunk of children when the layout is
+	 * painted progressively. The amount of children already received is sent
+	 * so that the server can ignore outdated requests.
+	 */
+	private final ScheduledCommand requestNextChunk = new ScheduledCommand() {
+		public void execute() {
+			if (isAttached() && client != null) {
+				client.updateVariable(paintableId, "chunk",
+						getServerChildCount(), true);
+			}
+		}
+	};
+
+	/**
+	 * Counts the children the server has painted. A static block stands for
+	 * all the labels collapsed into it, and caption widgets are not counted.
+	 */
+	private int getServerChildCount() {
+		int count = 0;
+		for (Widget w : getChildren()) {
+			if (w instanceof StaticBlock) {
+				count += ((StaticBlock) w).getSize();
+			} else if (!(w instanceof VCaption)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/** Time budget of one slice of child updates */
+	private static final int SLICE_MILLIS = 8;
+
+	/** Children are updated in time slices */
+	private boolean incremental = false;
+
+	/** Children waiting for their update in incremental rendering */
+	private final ArrayList<Widget> pendingWidgets = new ArrayList<Widget>();
+	private final ArrayList<UIDL> pendingUIDLs = new ArrayList<UIDL>();
+
+	/** Index of the next pending child update */
+	private int pendingPos = 0;
+
+	/** The child being updated from the pending updates */
+	private Widget updatingPending = null;
+
+	private boolean sliceScheduled = false;
+
+	/**
+	 * Updates pending children until the time budget of a slice is used, and
+	 * lets the browser handle events between the slices.
+	 */
+	private final RepeatingCommand sliceCommand = new RepeatingCommand() {
+		public boolean execute() {
+			if (!isAttached()) {
+				// Paused until attached again
+				sliceScheduled = false;
+				return false;
+			}
+			final Duration duration = new Duration();
+			rendering = true;
+			while (pendingPos < pendingWidgets.size()
+					&& duration.elapsedMillis() < SLICE_MILLIS) {
+				updateNextPending();
+			}
+			rendering = false;
+			if (pendingPos < pendingWidgets.size()) {
+				return true;
+			}
+
+			sliceScheduled = false;
+			pendingWidgets.clear();
+			pendingUIDLs.clear();
+			pendingPos = 0;
+			// The size of the children has changed after the update
+			scheduleActualSizeUpdate();
+			scheduleOverflowFix();
+			Util.notifyParentOfSizeChange(VSimpleLayout.this, false);
+			return false;
+		}
+	};
+
+	/** Window of painted children, null unless virtualized */
+	private VirtualWindow virtualWindow = null;
+
 	public VSimpleLayout() {
 		this(Document.get().createDivElement());
 
@@ -101,6 +307,8 @@ public class VSimpleLayout extends ComplexPanel implements Container {
 		setStyleName(CLASSNAME);
 		if (!floatAdded) {
 			CSSRule rule = CSSRule.create("." + CLASSNAME);
+			SimpleLayoutStats.get().count(null,
+					SimpleLayoutStats.CSS_RULE_CREATE);
 			rule.setProperty("float", "left");
 			floatAdded = true;
 		}
@@ -110,110 +318,690 @@ public class VSimpleLayout extends ComplexPanel implements Container {
 	 * Called whenever an update is received from the server
 	 */
 	public void updateFromUIDL(UIDL uidl, ApplicationConnection client) {
+		final double started = SimpleLayoutStats.get().updateStarted();
 		rendering = true;
 
 		this.client = client;
 		paintableId = uidl.getId();
-		stripDimensions = uidl.hasAttribute("strip");
-
-		updateExtraSizeInfo();
+		flushPendingUpdates();
 
+		final boolean hadWidth = hasWidth;
+		final boolean hadHeight = hasHeight;
 		if (client.updateComponent(this, uidl, true)) {
 			rendering = false;
+			SimpleLayoutStats.get().updateFinished(this, started);
 			return;
 		}
 
+		// Cached UIDLs have no attributes, so the settings are read only
+		// from complete updates
+		incremental = uidl.hasAttribute("incr");
+		stripDimensions = uidl.hasAttribute("strip");
+		if (stripDimensions && (hadWidth && !hasWidth || hadHeight && !hasHeight)) {
+			// Unchanged children still have the sizes that were kept while
+			// the layout had a size
+			for (Widget w : getChildren()) {
+				if (w instanceof Paintable) {
+					stripSize(w);
+				}
+			}
+		}
+		setLightweightCaptions(uidl.hasAttribute("lcap"));
+		setWidgetPoolSize(uidl.hasAttribute("wpool") ? uidl
+				.getIntAttribute("wpool") : 0);
+
 		clickEventHandler.handleEventHandlerRegistration(client);
 
-		updateActualSize();
+		scheduleActualSizeUpdate();
 
-		// Iterate through Paintables in UIDL, add new ones and remove any
-		// old ones.
-		final int uidlCount = uidl.getChildCount();
-		int uidlPos = 0;
-		int elementPos = 0;
-		int customUidlCount = 0;
+		if (uidl.hasAttribute("vtotal")) {
+			if (virtualWindow == null) {
+				virtualWindow = new VirtualWindow(this);
+			}
+		} else if (virtualWindow != null) {
+			virtualWindow.release();
+			virtualWindow = null;
+		}
+
+		if (uidl.hasAttribute("delta")) {
+			applyDelta(uidl);
+		} else if (uidl.hasAttribute("append")) {
+			appendChildren(uidl);
+		} else {
+			updateChildren(uidl);
+		}
+
+		if (uidl.hasAttribute("more")) {
+			// Let the browser render the children first
+			Scheduler.get().scheduleDeferred(requestNextChunk);
+		}
+
+		if (virtualWindow != null) {
+			int count = 0;
+			for (int i = 0; i < uidl.getChildCount(); i++) {
+				if (!uidl.getChildUIDL(i).getTag().equals("custom")) {
+					count++;
+				}
+			}
+			virtualWindow.update(uidl.getIntAttribute("vtotal"),
+					uidl.getIntAttribute("vfirst"), count);
+		}
+
+		scheduleOverflowFix();
 
-		for (; uidlPos < uidlCount; uidlPos++, elementPos++) {
+		rendering = false;
+		SimpleLayoutStats.get().updateFinished(this, started);
+	}
 
-			final UIDL childUIDL = (uidlPos < uidlCount) ? uidl
-					.getChildUIDL(uidlPos) : null;
+	/**
+	 * Reconciles the children with the complete list of child UIDLs sent by
+	 * the server. Children are matched by identity, and only the children
+	 * that are not on a longest run of children already in the right order
+	 * are moved.
+	 */
+	private void updateChildren(UIDL uidl) {
+		final int uidlCount = uidl.getChildCount();
+		final ArrayList<UIDL> childUIDLs = new ArrayList<UIDL>(uidlCount);
+		final HashSet<String> newIds = new HashSet<String>();
 
+		// Static blocks are reused if the same HTML is sent again
+		final HashMap<String, ArrayList<StaticBlock>> oldBlocks = new HashMap<String, ArrayList<StaticBlock>>();
+		for (Widget w : getChildren()) {
+			if (w instanceof StaticBlock) {
+				String html = ((StaticBlock) w).getHtml();
+				if (!oldBlocks.containsKey(html)) {
+					oldBlocks.put(html, new ArrayList<StaticBlock>());
+				}
+				oldBlocks.get(html).add((StaticBlock) w);
+			}
+		}
+		final HashSet<Widget> keptBlocks = new HashSet<Widget>();
+
+		final ArrayList<Widget> widgets = new ArrayList<Widget>(uidlCount);
+		for (int uidlPos = 0; uidlPos < uidlCount; uidlPos++) {
+			final UIDL childUIDL = uidl.getChildUIDL(uidlPos);
 			if (childUIDL.getTag().equals("custom")) {
 				// Ignore this child element, it is not rendered. Only used in
 				// extending classes (and should always be the last UIDL item).
-				customUidlCount++;
 				continue;
 			}
+			childUIDLs.add(childUIDL);
+			if (isStatic(childUIDL)) {
+				String html = childUIDL.getStringAttribute("html");
+				ArrayList<StaticBlock> blocks = oldBlocks.get(html);
+				StaticBlock block;
+				if (blocks != null && !blocks.isEmpty()) {
+					block = blocks.remove(0);
+					keptBlocks.add(block);
+				} else {
+					block = new StaticBlock(html,
+							childUIDL.getIntAttribute("n"));
+				}
+				widgets.add(block);
+			} else {
+				newIds.add(childUIDL.getId());
+				// Resolved after the removals below
+				widgets.add(null);
+			}
+		}
 
-			final Widget uidlWidget = childUIDL != null ? (Widget) client
-					.getPaintable(childUIDL) : null;
+		// Remove the children that are no longer in the layout before
+		// creating the new ones, so that their widgets can be recycled
+		final ArrayList<Widget> oldChildren = new ArrayList<Widget>(
+				getWidgetCount());
+		for (Widget w : getChildren()) {
+			oldChildren.add(w);
+		}
+		for (Widget w : oldChildren) {
+			if (isCaption(w)) {
+				continue;
+			}
+			if (w instanceof StaticBlock ? !keptBlocks.contains(w) : !newIds
+					.contains(client.getPid((Paintable) w))) {
+				removeChild(w);
+			}
+		}
 
-			if (uidlWidget.getParent() == null
-					|| getChildren().get(elementPos) != uidlWidget) {
-				insertWidget(uidlWidget, elementPos, getElement());
+		// Collect the child widgets in their new order, and the current order
+		// of the remaining children
+		for (int i = 0; i < widgets.size(); i++) {
+			if (widgets.get(i) == null) {
+				widgets.set(i, getChildWidget(childUIDLs.get(i)));
 			}
+		}
+		final HashMap<Widget, Integer> oldPositions = new HashMap<Widget, Integer>();
+		for (Widget w : getChildren()) {
+			if (!isCaption(w)) {
+				oldPositions.put(w, oldPositions.size());
+			}
+		}
+
+		if (getWidgetCount() == 0 && widgets.size() > 1) {
+			appendAll(widgets, childUIDLs);
+		} else {
+			moveChildren(widgets, oldPositions);
+		}
+
+		updateChildWidgets(widgets, childUIDLs);
+	}
 
-			((Paintable) uidlWidget).updateFromUIDL(childUIDL, client);
+	private static boolean isStatic(UIDL childUIDL) {
+		return childUIDL.getTag().equals("static");
+	}
 
-			// As requested many times on the forum, clear any width/height
-			// inline styles from components (only if the layout has undefined
-			// size)
-			if (!hasWidth && stripDimensions) {
-				uidlWidget.getElement().getStyle().clearWidth();
+	/**
+	 * Moves the children that are not on the longest increasing subsequence
+	 * of old positions, starting from the last one so that the following
+	 * child is always in its final place. New children are inserted the same
+	 * way.
+	 */
+	private void moveChildren(ArrayList<Widget> widgets,
+			HashMap<Widget, Integer> oldPositions) {
+		final int[] positions = new int[widgets.size()];
+		for (int i = 0; i < positions.length; i++) {
+			Integer oldPosition = oldPositions.get(widgets.get(i));
+			positions[i] = oldPosition != null ? oldPosition : -1;
+		}
+		final boolean[] inPlace = LongestIncreasingSubsequence.find(positions);
+		Widget next = null;
+		for (int i = widgets.size() - 1; i >= 0; i--) {
+			final Widget w = widgets.get(i);
+			if (!inPlace[i]) {
+				insertBefore(w, next);
 			}
-			if (!hasHeight && stripDimensions) {
-				uidlWidget.getElement().getStyle().clearHeight();
+			next = w;
+		}
+	}
+
+	/**
+	 * Appends the next chunk of children sent by a progressively painting
+	 * layout after the current children.
+	 */
+	private void appendChildren(UIDL uidl) {
+		final int uidlCount = uidl.getChildCount();
+		final ArrayList<Widget> widgets = new ArrayList<Widget>(uidlCount);
+		final ArrayList<UIDL> childUIDLs = new ArrayList<UIDL>(uidlCount);
+		for (int uidlPos = 0; uidlPos < uidlCount; uidlPos++) {
+			final UIDL childUIDL = uidl.getChildUIDL(uidlPos);
+			if (isStatic(childUIDL)) {
+				widgets.add(new StaticBlock(childUIDL
+						.getStringAttribute("html"), childUIDL
+						.getIntAttribute("n")));
+				childUIDLs.add(childUIDL);
+			} else if (!childUIDL.getTag().equals("custom")) {
+				widgets.add(getChildWidget(childUIDL));
+				childUIDLs.add(childUIDL);
 			}
+		}
+		appendAll(widgets, childUIDLs);
+		updateChildWidgets(widgets, childUIDLs);
+	}
 
-			if (VCaption.isNeeded(childUIDL)
-					&& widgetToCaption.get(uidlWidget) != null) {
-				elementPos++;
+	/**
+	 * Updates the children from their UIDLs, in time slices if incremental
+	 * rendering is enabled. The children are already in their places.
+	 */
+	private void updateChildWidgets(ArrayList<Widget> widgets,
+			ArrayList<UIDL> childUIDLs) {
+		for (int i = 0; i < widgets.size(); i++) {
+			final Widget w = widgets.get(i);
+			if (!(w instanceof Paintable)) {
+				// Static blocks are complete when created
+				continue;
+			}
+			trackRelativeSize(w, childUIDLs.get(i));
+			if (incremental) {
+				pendingWidgets.add(w);
+				pendingUIDLs.add(childUIDLs.get(i));
+			} else {
+				updateChild(w, childUIDLs.get(i));
 			}
+		}
+		scheduleSlices();
+	}
 
-		} // All UIDL widgets painted
+	/**
+	 * Updates a child from its UIDL. As requested many times on the forum,
+	 * the width/height inline styles of the child are then cleared (only if
+	 * the layout has undefined size). A cached child has not changed, so its
+	 * sizes are already cleared.
+	 */
+	private void updateChild(Widget w, UIDL childUIDL) {
+		((Paintable) w).updateFromUIDL(childUIDL, client);
+		if (stripDimensions && !childUIDL.getBooleanAttribute("cached")) {
+			stripSize(w);
+		}
+	}
 
-		// All remaining widgets are removed
-		removeChildrenAfter(elementPos - customUidlCount);
+	private void stripSize(Widget w) {
+		if (!hasWidth) {
+			w.getElement().getStyle().clearWidth();
+		}
+		if (!hasHeight) {
+			w.getElement().getStyle().clearHeight();
+		}
+	}
 
-		Util.runWebkitOverflowAutoFix(getElement());
+	private void scheduleSlices() {
+		if (!sliceScheduled && pendingPos < pendingWidgets.size()) {
+			sliceScheduled = true;
+			Scheduler.get().scheduleIncremental(sliceCommand);
+		}
+	}
 
-		rendering = false;
+	private void updateNextPending() {
+		final int i = pendingPos++;
+		updatingPending = pendingWidgets.get(i);
+		try {
+			updateChild(updatingPending, pendingUIDLs.get(i));
+		} finally {
+			updatingPending = null;
+		}
+	}
+
+	/**
+	 * Drops the pending update of a child that has been updated directly by a
+	 * later response, so that the older UIDL does not overwrite the newer
+	 * state.
+	 */
+	private void dropPendingUpdate(Widget child) {
+		if (child == updatingPending) {
+			return;
+		}
+		for (int i = pendingPos; i < pendingWidgets.size(); i++) {
+			if (pendingWidgets.get(i) == child) {
+				pendingWidgets.remove(i);
+				pendingUIDLs.remove(i);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Applies all pending child updates at once. Done before a new update is
+	 * handled, so that the updates are applied in the order they arrived.
+	 */
+	private void flushPendingUpdates() {
+		while (pendingPos < pendingWidgets.size()) {
+			updateNextPending();
+		}
+		pendingWidgets.clear();
+		pendingUIDLs.clear();
+		pendingPos = 0;
+	}
+
+	/**
+	 * Appends the children after the current ones. The elements of the children and
+	 * their captions are first built into a detached document fragment,
+	 * which is then attached with a single DOM operation. The widgets are
+	 * adopted after that, so they are attached to the document when their
+	 * onAttach is called.
+	 */
+	private void appendAll(ArrayList<Widget> widgets,
+			ArrayList<UIDL> childUIDLs) {
+		final Node fragment = createDocumentFragment();
+		final ArrayList<Widget> added = new ArrayList<Widget>(
+				widgets.size() * 2);
+		for (int i = 0; i < widgets.size(); i++) {
+			final Widget w = widgets.get(i);
+			if (w instanceof Paintable && !lightweightCaptions
+					&& VCaption.isNeeded(childUIDLs.get(i))) {
+				// Created here so that updateCaption does not insert it
+				// into the live element later
+				VCaption caption = new VCaption((Paintable) w, client);
+				SimpleLayoutStats.get().count(this,
+						SimpleLayoutStats.CAPTION_CREATE);
+				widgetToCaption.put(w, caption);
+				added.add(caption);
+			}
+			added.add(w);
+		}
+
+		for (Widget w : added) {
+			w.removeFromParent();
+			SimpleLayoutStats.get().count(this, SimpleLayoutStats.INSERT_WIDGET);
+			getChildren().add(w);
+			indexChild(w);
+			fragment.appendChild(w.getElement());
+		}
+		getElement().insertBefore(fragment,
+				virtualWindow != null ? virtualWindow.getEndElement() : null);
+
+		for (Widget w : added) {
+			adopt(w);
+		}
+	}
+
+	private static native Node createDocumentFragment()
+	/*-{
+		return $doc.createDocumentFragment();
+	}-*/;
+
+	private boolean isCaption(Widget w) {
+		return w instanceof VCaption
+				&& widgetToCaption.get(((VCaption) w).getOwner()) == w;
+	}
+
+	/**
+	 * Removes a child and its caption from the layout and unregisters it.
+	 */
+	private void removeChild(Widget w) {
+		VCaption caption = widgetToCaption.remove(w);
+		if (caption != null) {
+			remove(caption);
+		}
+		relativeSizeChildren.remove(w);
+		remove(w);
+		SimpleLayoutStats.get().count(this, SimpleLayoutStats.REMOVE_CHILD);
+		if (w instanceof Paintable) {
+			client.unregisterPaintable((Paintable) w);
+			recycle(w);
+		}
+	}
+
+	/**
+	 * Returns the widget for a child UIDL. When widget recycling is enabled, a
+	 * new child gets a released widget of the same type if there is one.
+	 */
+	private Widget getChildWidget(UIDL childUIDL) {
+		final String tag = childUIDL.getTag();
+		if (widgetPoolSize > 0
+				&& client.getPaintable(childUIDL.getId()) == null) {
+			final ArrayList<Widget> pooled = widgetPool.get(tagToWidgetClass
+					.get(tag));
+			if (pooled != null && !pooled.isEmpty()) {
+				final Widget w = pooled.remove(pooled.size() - 1);
+				pooledWidgetCount--;
+				// The new paintable gets a complete UIDL, which resets the
+				// state of the widget
+				client.registerPaintable(childUIDL.getId(), (Paintable) w);
+				SimpleLayoutStats.get().count(this,
+						SimpleLayoutStats.RECYCLE_WIDGET);
+				return w;
+			}
+		}
+
+		final Widget w = (Widget) client.getPaintable(childUIDL);
+		if (widgetPoolSize > 0 && !(w instanceof Container)) {
+			// The widget type of a tag can depend on the attributes, such
+			// widgets are not recycled
+			if (!tagToWidgetClass.containsKey(tag)) {
+				tagToWidgetClass.put(tag, w.getClass());
+			} else if (tagToWidgetClass.get(tag) != w.getClass()) {
+				tagToWidgetClass.put(tag, null);
+			}
+		}
+		return w;
+	}
+
+	/**
+	 * Keeps a removed child for reuse if recycling is enabled, the pool is
+	 * not full and widgets of its type can be recycled.
+	 */
+	private void recycle(Widget w) {
+		if (pooledWidgetCount >= widgetPoolSize || w instanceof Container
+				|| !tagToWidgetClass.containsValue(w.getClass())) {
+			return;
+		}
+		ArrayList<Widget> pooled = widgetPool.get(w.getClass());
+		if (pooled == null) {
+			pooled = new ArrayList<Widget>();
+			widgetPool.put(w.getClass(), pooled);
+		}
+		pooled.add(w);
+		pooledWidgetCount++;
+	}
+
+	private void setWidgetPoolSize(int widgetPoolSize) {
+		this.widgetPoolSize = widgetPoolSize;
+		if (widgetPoolSize == 0) {
+			widgetPool.clear();
+			tagToWidgetClass.clear();
+			pooledWidgetCount = 0;
+		}
+	}
+
+	/**
+	 * Applies the child list operations of a delta paint. Children removed on
+	 * the server are sent as "rm" operations and added or moved children as
+	 * "ins" operations, which contain the child UIDL and a reference to the
+	 * child they should be placed before.
+	 */
+	private void applyDelta(UIDL uidl) {
+		final int count = uidl.getChildCount();
+		// The children before the delta, in which the removed children are
+		// identified by their position
+		ArrayList<Widget> oldChildren = null;
+		for (int i = 0; i < count; i++) {
+			final UIDL op = uidl.getChildUIDL(i);
+			if (op.getTag().equals("rm")) {
+				if (oldChildren == null) {
+					oldChildren = new ArrayList<Widget>();
+					for (Widget w : getChildren()) {
+						if (w instanceof Paintable) {
+							oldChildren.add(w);
+						}
+					}
+				}
+				final int pos = op.getIntAttribute("i");
+				if (pos < oldChildren.size()) {
+					removeChild(oldChildren.get(pos));
+				}
+			} else if (op.getTag().equals("ins")) {
+				final UIDL childUIDL = op.getChildUIDL(0);
+				final Widget w = getChildWidget(childUIDL);
+				Widget before = null;
+				if (op.hasAttribute("before")) {
+					before = (Widget) client.getPaintable(op
+							.getStringAttribute("before"));
+				}
+				insertBefore(w, before);
+				trackRelativeSize(w, childUIDL);
+
+				updateChild(w, childUIDL);
+			}
+		}
+	}
+
+	/**
+	 * Places the widget and its caption before the given child, or last if
+	 * the child is null or not in this layout. Widgets already in this layout
+	 * are moved without detaching them.
+	 */
+	private void insertBefore(Widget w, Widget before) {
+		int pos = getWidgetCount();
+		if (before != null && before.getParent() == this) {
+			VCaption beforeCaption = widgetToCaption.get(before);
+			pos = getWidgetIndex(beforeCaption != null ? beforeCaption
+					: before);
+		}
+		if (w.getParent() == this && getWidgetIndex(w) < pos) {
+			pos--;
+		}
+		insertWidget(w, pos, getElement());
+
+		VCaption caption = widgetToCaption.get(w);
+		if (caption != null && caption.getParent() == this) {
+			pos = getWidgetIndex(w);
+			if (getWidgetIndex(caption) < pos) {
+				pos--;
+			}
+			insertWidget(caption, pos, getElement());
+		}
 	}
 
 	protected void insertWidget(Widget w, int pos, Element el) {
 		/*
-		 * Widget is either new or has changed place
+		 * Widget is either new or has changed place. Widgets that only move
+		 * inside this layout are kept attached.
 		 */
-		w.removeFromParent();
+		final boolean move = w.getParent() == this;
+		if (move) {
+			getChildren().remove(w);
+		} else {
+			w.removeFromParent();
+		}
+
+		SimpleLayoutStats.get().count(this, SimpleLayoutStats.INSERT_WIDGET);
 
 		// Logical attach
 		getChildren().insert(w, pos);
-
-		// Physical attach
-		DOM.insertChild((com.google.gwt.user.client.Element) el.cast(),
-				w.getElement(), pos);
+		indexChild(w);
+
+		// Physical attach, before the next child or the end of the children
+		if (pos + 1 < getWidgetCount()) {
+			el.insertBefore(w.getElement(),
+					getFirstElement(getWidget(pos + 1)));
+		} else if (virtualWindow != null) {
+			el.insertBefore(w.getElement(), virtualWindow.getEndElement());
+		} else {
+			el.appendChild(w.getElement());
+		}
+		final Element captionElement = captionElements.get(w);
+		if (captionElement != null) {
+			el.insertBefore(captionElement, w.getElement());
+		}
 
 		// Adopt.
-		adopt(w);
+		if (!move) {
+			adopt(w);
+		}
+	}
+
+	/**
+	 * Reads the margin, border and padding sizes unless the cached values
+	 * are still valid. They are invalidated only when the style name or the
+	 * theme changes.
+	 */
+	protected void ensureExtraSizeInfo() {
+		if (!extraSizeInfoValid || !isCurrentTheme(extraSizeInfoTheme)) {
+			updateExtraSizeInfo();
+		}
 	}
 
 	protected void updateExtraSizeInfo() {
+		SimpleLayoutStats.get().count(this,
+				SimpleLayoutStats.COMPUTED_STYLE_READ);
 		ComputedStyle cs = new ComputedStyle(getElement());
 		margin = cs.getMargin();
 		border = cs.getBorder();
 		padding = cs.getPadding();
+		// Values read from a detached element are not reliable
+		extraSizeInfoValid = isAttached();
+		extraSizeInfoTheme = client != null ? client.getThemeUri() : null;
+	}
+
+	private boolean isCurrentTheme(String theme) {
+		return client == null || client.getThemeUri() == null
+				|| client.getThemeUri().equals(theme);
 	}
 
 	@Override
 	public void setStyleName(String styleName) {
 		super.setStyleName(styleName);
-		if (isAttached() && !styleName.equals(lastStyleName)) {
-			updateExtraSizeInfo();
+		// Setting the style name replaces all class names of the element
+		if (widthRuleClass != null) {
+			getElement().addClassName(widthRuleClass);
+		}
+		if (heightRuleClass != null) {
+			getElement().addClassName(heightRuleClass);
+		}
+		if (!styleName.equals(lastStyleName)) {
+			extraSizeInfoValid = false;
 			lastStyleName = styleName;
 		}
 	}
 
+	@Override
+	protected void onAttach() {
+		super.onAttach();
+		acquireSizeRules();
+		if (!extraSizeInfoValid) {
+			scheduleActualSizeUpdate();
+		}
+		// Continue child updates paused while detached
+		scheduleSlices();
+	}
+
+	@Override
+	protected void onDetach() {
+		super.onDetach();
+		releaseSizeRules();
+	}
+
+	private void setWidthRule(String value) {
+		if (value == null ? widthRuleValue != null : !value
+				.equals(widthRuleValue)) {
+			releaseWidthRule();
+			widthRuleValue = value;
+			acquireSizeRules();
+		}
+	}
+
+	private void setHeightRule(String value) {
+		if (value == null ? heightRuleValue != null : !value
+				.equals(heightRuleValue)) {
+			releaseHeightRule();
+			heightRuleValue = value;
+			acquireSizeRules();
+		}
+	}
+
+	/**
+	 * Applies the shared size rules for the current size. Rules are only
+	 * held while the layout is attached.
+	 */
+	private void acquireSizeRules() {
+		if (!isAttached()) {
+			return;
+		}
+		if (widthRuleValue != null && widthRuleClass == null) {
+			widthRuleClass = SizeRulePool.acquire("width", widthRuleValue);
+			getElement().addClassName(widthRuleClass);
+		}
+		if (heightRuleValue != null && heightRuleClass == null) {
+			heightRuleClass = SizeRulePool.acquire("height", heightRuleValue);
+			getElement().addClassName(heightRuleClass);
+		}
+	}
+
+	private void releaseSizeRules() {
+		releaseWidthRule();
+		releaseHeightRule();
+	}
+
+	private void releaseWidthRule() {
+		if (widthRuleClass != null) {
+			getElement().removeClassName(widthRuleClass);
+			SizeRulePool.release(widthRuleClass);
+			widthRuleClass = null;
+		}
+	}
+
+	private void releaseHeightRule() {
+		if (heightRuleClass != null) {
+			getElement().removeClassName(heightRuleClass);
+			SizeRulePool.release(heightRuleClass);
+			heightRuleClass = null;
+		}
+	}
+
+	/**
+	 * Queues this layout for measuring its actual size. All queued layouts
+	 * are measured together after the current event has been handled, so the
+	 * reads are not interleaved with style changes and cause at most one
+	 * forced layout.
+	 */
+	private void scheduleActualSizeUpdate() {
+		if (!actualSizeQueued) {
+			actualSizeQueued = true;
+			if (measureQueue.isEmpty()) {
+				Scheduler.get().scheduleFinally(measureCommand);
+			}
+			measureQueue.add(this);
+		}
+	}
+
 	/**
 	 * Only pixel values are accepted.
 	 */
@@ -223,6 +1011,7 @@ public class VSimpleLayout extends ComplexPanel implements Container {
 		hasWidth = false;
 		if (w != null && !"".equals(w)) {
 			hasWidth = true;
+			ensureExtraSizeInfo();
 			// Assume pixel values are always passed from ApplicationConnection
 			int newWidth = ComputedStyle.parseInt(w) - margin[1] - margin[3]
 					- border[1] - border[3] - padding[1] - padding[3];
@@ -230,24 +1019,16 @@ public class VSimpleLayout extends ComplexPanel implements Container {
 				newWidth = 0;
 			}
 			toBeWidth = newWidth + "px";
-
-			// We use the stylesheet for controlling size. Allows developers to
-			// more easily override it.
-			if (css == null) {
-				css = CSSRule.create("." + getStylePrimaryName() + "-"
-						+ paintableId);
-			}
-			getElement()
-					.addClassName(getStylePrimaryName() + "-" + paintableId);
-			css.setProperty("width", toBeWidth);
-		} else if (css != null) {
-			css.setProperty("width", "");
 		}
 
+		// We use the stylesheet for controlling size. Allows developers to
+		// more easily override it.
+		setWidthRule("".equals(toBeWidth) ? null : toBeWidth);
+
 		if (!rendering) {
-			updateActualSize();
-			updateRelativeSizes();
-			Util.runWebkitOverflowAutoFix(getElement());
+			scheduleActualSizeUpdate();
+			scheduleRelativeSizes();
+			scheduleOverflowFix();
 		}
 	}
 
@@ -261,6 +1042,7 @@ public class VSimpleLayout extends ComplexPanel implements Container {
 
 		if (h != null && !"".equals(h)) {
 			hasHeight = true;
+			ensureExtraSizeInfo();
 			// Assume pixel values are always passed from ApplicationConnection
 			int newHeight = ComputedStyle.parseInt(h) - margin[0] - margin[2]
 					- border[0] - border[2] - padding[0] - padding[2];
@@ -268,33 +1050,33 @@ public class VSimpleLayout extends ComplexPanel implements Container {
 				newHeight = 0;
 			}
 			toBeHeight = newHeight + "px";
-
-			// We use the stylesheet for controlling size. Allows developers to
-			// more easily override it.
-			if (css == null) {
-				css = CSSRule.create("." + getStylePrimaryName() + "-"
-						+ paintableId);
-			}
-			getElement()
-					.addClassName(getStylePrimaryName() + "-" + paintableId);
-			css.setProperty("height", toBeHeight);
-		} else if (css != null) {
-			css.setProperty("height", "");
 		}
 
+		// We use the stylesheet for controlling size. Allows developers to
+		// more easily override it.
+		setHeightRule("".equals(toBeHeight) ? null : toBeHeight);
+
 		if (!rendering) {
-			updateActualSize();
-			updateRelativeSizes();
-			Util.runWebkitOverflowAutoFix(getElement());
+			scheduleActualSizeUpdate();
+			scheduleRelativeSizes();
+			scheduleOverflowFix();
 		}
 	}
 
 	protected void removeChildrenAfter(int pos) {
-		int toRemove = getChildren().size() - pos;
-		while (toRemove-- > 0) {
-			Widget child = getChildren().get(pos);
-			remove(child);
-			client.unregisterPaintable((Paintable) child);
+		final ArrayList<Widget> toRemove = new ArrayList<Widget>();
+		for (int i = pos; i < getWidgetCount(); i++) {
+			toRemove.add(getWidget(i));
+		}
+		for (Widget child : toRemove) {
+			if (child.getParent() != this) {
+				// Already removed together with its owner
+			} else if (isCaption(child)) {
+				widgetToCaption.remove(((VCaption) child).getOwner());
+				remove(child);
+			} else {
+				removeChild(child);
+			}
 		}
 	}
 
@@ -302,6 +1084,7 @@ public class VSimpleLayout extends ComplexPanel implements Container {
 		if (!hasWidth && !hasHeight) {
 			return null;
 		}
+		ensureExtraSizeInfo();
 		RenderSpace space = new RenderSpace(-1, -1, true);
 		if (hasWidth) {
 			space.setWidth(getOffsetWidth() - padding[1] - padding[3]
@@ -314,49 +1097,91 @@ public class VSimpleLayout extends ComplexPanel implements Container {
 		return space;
 	}
 
-	public boolean hasChildComponent(Widget component) {
-		for (Widget w : getChildren()) {
-			if (w == component) {
-				return true;
-			}
+	private void indexChild(Widget w) {
+		elementToChild.put(w.getElement(),
+				isCaption(w) ? (Widget) ((VCaption) w).getOwner() : w);
+	}
+
+	@Override
+	public boolean remove(Widget w) {
+		final boolean removed = super.remove(w);
+		if (removed) {
+			elementToChild.remove(w.getElement());
+			removeCaptionElement(w);
 		}
-		return false;
+		return removed;
+	}
+
+	public boolean hasChildComponent(Widget component) {
+		return elementToChild.get(component.getElement()) == component;
 	}
 
 	public void replaceChildComponent(Widget oldComponent, Widget newComponent) {
 		int index = getWidgetIndex(oldComponent);
 		if (index >= 0) {
+			// The new widget is updated from the same UIDL
+			if (relativeSizeChildren.remove(oldComponent)) {
+				relativeSizeChildren.add(newComponent);
+			}
 			remove(oldComponent);
-			insert(newComponent, getElement(), index, true);
+			insertWidget(newComponent, index, getElement());
 		}
 	}
 
 	public boolean requestLayout(Set<Paintable> children) {
-		for (Paintable p : children) {
-			Widget w = (Widget) p;
-			if (!hasWidth && stripDimensions) {
-				w.getElement().getStyle().clearWidth();
+		// Also called when a child has switched between a relative and a
+		// fixed size in an update sent directly to the child
+		for (Paintable child : children) {
+			// Children that do not let the layout manage their captions are
+			// only seen here after a direct update
+			dropPendingUpdate((Widget) child);
+			if (stripDimensions) {
+				stripSize((Widget) child);
 			}
-			if (!hasHeight && stripDimensions) {
-				w.getElement().getStyle().clearHeight();
+			if (client.getRelativeSize((Widget) child) != null) {
+				relativeSizeChildren.add((Widget) child);
+			} else {
+				relativeSizeChildren.remove(child);
 			}
 		}
-		Util.runWebkitOverflowAutoFix(getElement());
-		if (hasWidth && hasHeight) {
-			return true;
-		} else {
-			// Size may have changed
-			// TODO optimize this: cache size if not fixed, handle both width
-			// and height separately
-			return false;
+		scheduleOverflowFix();
+
+		// A fixed dimension can not change because of the children. An
+		// undefined one is compared to the size measured the last time.
+		boolean sizeUnchanged = true;
+		if (!hasWidth) {
+			int offsetWidth = getOffsetWidth();
+			if (offsetWidth != lastOffsetWidth) {
+				lastOffsetWidth = offsetWidth;
+				sizeUnchanged = false;
+			}
+		}
+		if (!hasHeight) {
+			int offsetHeight = getOffsetHeight();
+			if (offsetHeight != lastOffsetHeight) {
+				lastOffsetHeight = offsetHeight;
+				sizeUnchanged = false;
+			}
 		}
+		return sizeUnchanged;
 	}
 
 	public void updateCaption(Paintable component, UIDL uidl) {
+		// Called before the child applies the UIDL
+		dropPendingUpdate((Widget) component);
+		trackRelativeSize((Widget) component, uidl);
+
+		if (lightweightCaptions) {
+			updateCaptionElement((Widget) component, uidl);
+			return;
+		}
+
 		VCaption caption = widgetToCaption.get(component);
 		if (VCaption.isNeeded(uidl)) {
 			if (caption == null) {
 				caption = new VCaption(component, client);
+				SimpleLayoutStats.get().count(this,
+						SimpleLayoutStats.CAPTION_CREATE);
 				widgetToCaption.put((Widget) component, caption);
 				insertWidget(caption, getWidgetIndex((Widget) component),
 						getElement());
@@ -368,17 +1193,163 @@ public class VSimpleLayout extends ComplexPanel implements Container {
 		}
 	}
 
+	/**
+	 * Renders the caption of a child as a plain element placed before the
+	 * child element, used instead of a VCaption widget in lightweight caption
+	 * mode.
+	 */
+	private void updateCaptionElement(Widget w, UIDL uidl) {
+		if (!VCaption.isNeeded(uidl)) {
+			removeCaptionElement(w);
+			return;
+		}
+		Element caption = captionElements.get(w);
+		if (caption == null) {
+			caption = Document.get().createDivElement();
+			SimpleLayoutStats.get().count(this,
+					SimpleLayoutStats.CAPTION_CREATE);
+			captionElements.put(w, caption);
+			elementToChild.put(caption, w);
+			if (w.getParent() == this) {
+				getElement().insertBefore(caption, w.getElement());
+			}
+		}
+
+		final StringBuilder className = new StringBuilder(CAPTION_CLASSNAME);
+		if (uidl.hasAttribute("style")) {
+			for (String style : uidl.getStringAttribute("style").split(" ")) {
+				if (style.length() > 0) {
+					className.append(' ').append(CAPTION_CLASSNAME).append('-')
+							.append(style);
+				}
+			}
+		}
+		if (uidl.getBooleanAttribute("disabled")) {
+			className.append(" v-disabled");
+		}
+		caption.setClassName(className.toString());
+
+		final StringBuilder html = new StringBuilder();
+		if (uidl.hasAttribute("icon")) {
+			final String icon = client.translateVaadinUri(uidl
+					.getStringAttribute("icon"));
+			html.append("<img class=\"v-icon\" alt=\"\" src=\"")
+					.append(SafeHtmlUtils.htmlEscape(icon)).append("\" />");
+		}
+		if (uidl.hasAttribute("caption")) {
+			html.append("<span class=\"v-captiontext\">")
+					.append(SafeHtmlUtils.htmlEscape(uidl
+							.getStringAttribute("caption"))).append("</span>");
+		}
+		if (uidl.getBooleanAttribute("required")) {
+			html.append("<span class=\"v-required-field-indicator\">*</span>");
+		}
+		if (uidl.hasAttribute("error")) {
+			html.append("<span class=\"v-errorindicator\"></span>");
+		}
+		caption.setInnerHTML(html.toString());
+	}
+
+	private void removeCaptionElement(Widget w) {
+		final Element caption = captionElements.remove(w);
+		if (caption != null) {
+			elementToChild.remove(caption);
+			caption.removeFromParent();
+		}
+	}
+
+	/**
+	 * Switches between VCaption widgets and lightweight caption elements.
+	 * The captions of the current mode are removed, the server repaints the
+	 * children so that their captions are created again.
+	 */
+	private void setLightweightCaptions(boolean lightweightCaptions) {
+		if (this.lightweightCaptions == lightweightCaptions) {
+			return;
+		}
+		this.lightweightCaptions = lightweightCaptions;
+		for (VCaption caption : new ArrayList<VCaption>(
+				widgetToCaption.values())) {
+			remove(caption);
+		}
+		widgetToCaption.clear();
+		for (Widget w : new ArrayList<Widget>(captionElements.keySet())) {
+			removeCaptionElement(w);
+		}
+	}
+
+	/**
+	 * @return the element of the child, or its lightweight caption element
+	 *         which is placed before it
+	 */
+	private Element getFirstElement(Widget w) {
+		final Element caption = captionElements.get(w);
+		return caption != null ? caption : w.getElement();
+	}
+
+	/**
+	 * Tracks whether a child has a relative size, from the child UIDL sent
+	 * to this layout. Not all widgets call updateCaption, so the sizes are
+	 * read here for every child. Cached UIDLs have no size information.
+	 */
+	private void trackRelativeSize(Widget w, UIDL childUIDL) {
+		if (childUIDL.getBooleanAttribute("cached")) {
+			return;
+		}
+		if (isRelative(childUIDL, "width") || isRelative(childUIDL, "height")) {
+			relativeSizeChildren.add(w);
+		} else {
+			relativeSizeChildren.remove(w);
+		}
+	}
+
+	private static boolean isRelative(UIDL uidl, String attribute) {
+		return uidl.hasAttribute(attribute)
+				&& uidl.getStringAttribute(attribute).endsWith("%");
+	}
+
+	private void scheduleOverflowFix() {
+		overflowFixPending = true;
+		scheduleLayoutCommand();
+	}
+
+	private void scheduleRelativeSizes() {
+		relativeSizesPending = true;
+		scheduleLayoutCommand();
+	}
+
+	private void scheduleLayoutCommand() {
+		if (!layoutCommandScheduled) {
+			layoutCommandScheduled = true;
+			Scheduler.get().scheduleFinally(layoutCommand);
+		}
+	}
+
+	/**
+	 * Updates the sizes of the children with a relative size. Other children
+	 * are not affected by the size of this layout.
+	 */
 	private void updateRelativeSizes() {
-		for (Widget w : getChildren()) {
-			if (w instanceof Paintable) {
+		for (Widget w : relativeSizeChildren) {
+			if (w.getParent() == this) {
 				client.handleComponentRelativeSize(w);
 			}
 		}
 	}
 
+	private void runWebkitOverflowAutoFix() {
+		SimpleLayoutStats.get().count(this, SimpleLayoutStats.OVERFLOW_FIX);
+		Util.runWebkitOverflowAutoFix(getElement());
+	}
+
 	public void updateActualSize() {
+		SimpleLayoutStats.get().count(this,
+				SimpleLayoutStats.COMPUTED_STYLE_READ);
 		ComputedStyle cs = new ComputedStyle(getElement());
 		width = cs.getIntProperty("width");
 		height = cs.getIntProperty("height");
+		// The parent has handled any size change caused by the update
+		lastOffsetWidth = hasWidth ? -1 : getOffsetWidth();
+		lastOffsetHeight = hasHeight ? -1 : getOffsetHeight();
 	}
 }
@@ -0,0 +1,177 @@
+package org.vaadin.simplelayout.client.ui;
+
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.ScheduledCommand;
+import com.google.gwt.dom.client.Document;
+import com.google.gwt.dom.client.Element;
+import com.google.gwt.dom.client.Style.Overflow;
+import com.google.gwt.dom.client.Style.Unit;
+import com.google.gwt.event.dom.client.ScrollEvent;
+import com.google.gwt.event.dom.client.ScrollHandler;
+import com.google.gwt.event.shared.HandlerRegistration;
+import com.google.gwt.user.client.Timer;
+
+/**
+ * Keeps track of the window of children painted by a virtualized
+ * {@link VSimpleLayout}. Spacer elements before and after the painted
+ * children take the place of the children that are not painted, and the
+ * visible range of children is reported to the server when the user scrolls
+ * near the edge of the painted window.
+ * <p>
+ * The size of the unpainted children is estimated from the average height
+ * taken by the painted ones, which also works for children flowing as tiles.
+ */
+class VirtualWindow {
+
+	private static final String SPACER_CLASSNAME = VSimpleLayout.CLASSNAME
+			+ "-spacer";
+
+	private static final int SCROLL_DELAY = 100;
+
+	private final VSimpleLayout layout;
+
+	private final Element topSpacer;
+
+	private final Element bottomSpacer;
+
+	private final HandlerRegistration scrollRegistration;
+
+	/** Total amount of children in the server side layout */
+	private int total = 0;
+
+	/** Index of the first painted child */
+	private int first = 0;
+
+	/** Amount of painted children */
+	private int count = 0;
+
+	/** Estimated height taken by one child in pixels */
+	private double itemExtent = -1;
+
+	private int requestedFirst = -1;
+
+	private int requestedLast = -1;
+
+	private final Timer scrollTimer = new Timer() {
+		@Override
+		public void run() {
+			checkWindow();
+		}
+	};
+
+	private final ScheduledCommand checkCommand = new ScheduledCommand() {
+		public void execute() {
+			checkWindow();
+		}
+	};
+
+	VirtualWindow(VSimpleLayout layout) {
+		this.layout = layout;
+		Element root = layout.getElement();
+		topSpacer = createSpacer();
+		bottomSpacer = createSpacer();
+		root.insertFirst(topSpacer);
+		root.appendChild(bottomSpacer);
+		root.getStyle().setOverflow(Overflow.AUTO);
+		scrollRegistration = layout.addDomHandler(new ScrollHandler() {
+			public void onScroll(ScrollEvent event) {
+				scrollTimer.schedule(SCROLL_DELAY);
+			}
+		}, ScrollEvent.getType());
+	}
+
+	private static Element createSpacer() {
+		Element spacer = Document.get().createDivElement();
+		spacer.setClassName(SPACER_CLASSNAME);
+		spacer.getStyle().setProperty("clear", "both");
+		spacer.getStyle().setOverflow(Overflow.HIDDEN);
+		spacer.getStyle().setHeight(0, Unit.PX);
+		return spacer;
+	}
+
+	/**
+	 * @return the element after the painted children, new children must be
+	 *         inserted before it
+	 */
+	Element getEndElement() {
+		return bottomSpacer;
+	}
+
+	/**
+	 * Updates the spacers after the painted children have been rendered.
+	 *
+	 * @param total
+	 *            the total amount of children in the layout
+	 * @param first
+	 *            the index of the first painted child
+	 * @param count
+	 *            the amount of painted children
+	 */
+	void update(int total, int first, int count) {
+		this.total = total;
+		this.first = first;
+		this.count = count;
+		requestedFirst = -1;
+		requestedLast = -1;
+
+		int contentHeight = bottomSpacer.getOffsetTop()
+				- (topSpacer.getOffsetTop() + topSpacer.getOffsetHeight());
+		if (count > 0 && contentHeight > 0) {
+			itemExtent = (double) contentHeight / count;
+		}
+		if (itemExtent > 0) {
+			topSpacer.getStyle().setHeight(Math.round(first * itemExtent),
+					Unit.PX);
+			bottomSpacer.getStyle().setHeight(
+					Math.round((total - first - count) * itemExtent), Unit.PX);
+		}
+
+		Scheduler.get().scheduleDeferred(checkCommand);
+	}
+
+	/**
+	 * Reports the visible range of children to the server if it is outside
+	 * or close to the edges of the painted window.
+	 */
+	private void checkWindow() {
+		if (itemExtent <= 0 || !layout.isAttached() || layout.client == null) {
+			return;
+		}
+		Element root = layout.getElement();
+		int contentTop = topSpacer.getAbsoluteTop() - root.getAbsoluteTop()
+				+ root.getScrollTop() + topSpacer.getOffsetHeight();
+		double top = root.getScrollTop() - contentTop + first * itemExtent;
+
+		int visibleFirst = Math.max(0, (int) (top / itemExtent));
+		int visibleLast = Math.min(total, (int) Math.ceil((top + root
+				.getClientHeight()) / itemExtent));
+		int paintedLast = first + count;
+		int margin = Math.max(0, (count - (visibleLast - visibleFirst)) / 4);
+
+		boolean outside = visibleFirst < first || visibleLast > paintedLast;
+		boolean nearStart = first > 0 && visibleFirst - first < margin;
+		boolean nearEnd = paintedLast < total
+				&& paintedLast - visibleLast < margin;
+
+		if ((outside || nearStart || nearEnd)
+				&& (visibleFirst != requestedFirst || visibleLast != requestedLast)) {
+			requestedFirst = visibleFirst;
+			requestedLast = visibleLast;
+			layout.client.updateVariable(layout.paintableId, "vfirst",
+					visibleFirst, false);
+			layout.client.updateVariable(layout.paintableId, "vlast",
+					visibleLast, true);
+		}
+	}
+
+	/**
+	 * Removes the spacers and the scroll handling from the layout.
+	 */
+	void release() {
+		scrollTimer.cancel();
+		scrollRegistration.removeHandler();
+		topSpacer.removeFromParent();
+		bottomSpacer.removeFromParent();
+		layout.getElement().getStyle().clearOverflow();
+	}
+}
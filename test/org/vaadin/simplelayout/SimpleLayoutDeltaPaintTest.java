@@ -0,0 +1,104 @@
+package org.vaadin.simplelayout;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.Application;
+import com.vaadin.terminal.PaintException;
+import com.vaadin.terminal.gwt.server.CommunicationManager;
+import com.vaadin.terminal.gwt.server.JsonPaintTarget;
+import com.vaadin.ui.Label;
+import com.vaadin.ui.Window;
+
+/**
+ * Paints {@link SimpleLayout} in delta mode with the UIDL writer of the
+ * terminal.
+ */
+public class SimpleLayoutDeltaPaintTest {
+
+    private SimpleLayout layout;
+
+    @Before
+    public void setUp() throws PaintException {
+        Application application = new Application() {
+            @Override
+            public void init() {
+            }
+        };
+        Window window = new Window();
+        application.setMainWindow(window);
+
+        layout = new SimpleLayout();
+        layout.setDeltaPainting(true);
+        for (int i = 0; i < 5; i++) {
+            layout.addComponent(new Label("Label " + i));
+        }
+        window.addComponent(layout);
+        paint();
+    }
+
+    /**
+     * Paints the layout and returns the UIDL. Each paint uses a new manager,
+     * which has no paintable IDs for detached components, like the terminal
+     * after it has released the IDs of the detached components.
+     */
+    private String paint() throws PaintException {
+        StringWriter uidl = new StringWriter();
+        JsonPaintTarget target = new JsonPaintTarget(new CommunicationManager(
+                layout.getApplication()), new PrintWriter(uidl), true);
+        layout.paint(target);
+        target.close();
+        return uidl.toString();
+    }
+
+    private static int count(String uidl, String text) {
+        int count = 0;
+        for (int i = uidl.indexOf(text); i >= 0; i = uidl.indexOf(text, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void removedChildIsSentByPosition() throws PaintException {
+        layout.removeComponent(layout.getComponent(1));
+        layout.removeComponent(layout.getComponent(2));
+
+        String uidl = paint();
+        assertTrue(uidl.contains("\"delta\":true"));
+        assertFalse(uidl.contains("Orphan"));
+        assertTrue(uidl.contains("[\"rm\",{\"i\":1}]"));
+        assertTrue(uidl.contains("[\"rm\",{\"i\":3}]"));
+        assertEquals(2, count(uidl, "\"rm\""));
+    }
+
+    @Test
+    public void replacedChildIsRemovedByPosition() throws PaintException {
+        layout.replaceComponent(layout.getComponent(2), new Label("New"));
+
+        String uidl = paint();
+        assertFalse(uidl.contains("Orphan"));
+        assertTrue(uidl.contains("[\"rm\",{\"i\":2}]"));
+        assertEquals(1, count(uidl, "\"ins\""));
+    }
+
+    @Test
+    public void positionsFollowThePreviousDelta() throws PaintException {
+        layout.removeComponent(layout.getComponent(0));
+        paint();
+        layout.addComponent(new Label("Last"));
+        paint();
+        layout.removeComponent(layout.getComponent(4));
+
+        String uidl = paint();
+        assertTrue(uidl.contains("[\"rm\",{\"i\":4}]"));
+        assertEquals(1, count(uidl, "\"rm\""));
+    }
+}
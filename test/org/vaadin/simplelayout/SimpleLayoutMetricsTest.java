@@ -0,0 +1,93 @@
+package org.vaadin.simplelayout;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.terminal.PaintException;
+import com.vaadin.terminal.PaintTarget;
+import com.vaadin.ui.Label;
+
+/**
+ * Checks the metrics collected by {@link SimpleLayoutMetrics} for nested
+ * layouts.
+ */
+public class SimpleLayoutMetricsTest {
+
+    private final SimpleLayoutMetrics metrics = SimpleLayoutMetrics.get();
+
+    @Before
+    public void setUp() {
+        metrics.setEnabled(true);
+        metrics.reset();
+    }
+
+    @After
+    public void tearDown() {
+        metrics.unregister();
+    }
+
+    private static void paint(SimpleLayout layout) throws PaintException {
+        layout.paint((PaintTarget) Proxy.newProxyInstance(
+                PaintTarget.class.getClassLoader(),
+                new Class<?>[] { PaintTarget.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        return method.getReturnType() == boolean.class ? false
+                                : null;
+                    }
+                }));
+    }
+
+    private long getCharacters(String styleName) {
+        for (String stats : metrics.getStyleStatistics()) {
+            if (stats.startsWith(styleName + ":")) {
+                return Long.parseLong(stats.substring(stats
+                        .indexOf("uidlCharacters=") + 15));
+            }
+        }
+        throw new AssertionError("No statistics for " + styleName);
+    }
+
+    @Test
+    public void nestedLayoutIsCountedOnce() throws PaintException {
+        SimpleLayout inner = new SimpleLayout();
+        inner.setStyleName("inner");
+        for (int i = 0; i < 50; i++) {
+            inner.addComponent(new Label("Label " + i));
+        }
+        paint(inner);
+        long innerAlone = getCharacters("inner");
+        metrics.reset();
+
+        SimpleLayout outer = new SimpleLayout();
+        outer.setStyleName("outer");
+        outer.addComponent(inner);
+        paint(outer);
+
+        // The tag of the nested layout is painted by the outer one
+        assertTrue(getCharacters("outer") < innerAlone / 10);
+        assertEquals(getCharacters("inner") + getCharacters("outer"),
+                metrics.getUidlCharacters());
+    }
+
+    @Test
+    public void unregisterRemovesTheMBean() throws Exception {
+        ObjectName name = new ObjectName("org.vaadin.simplelayout:type=Metrics");
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(
+                name));
+        metrics.unregister();
+        assertTrue(!ManagementFactory.getPlatformMBeanServer().isRegistered(
+                name));
+    }
+}
@@ -0,0 +1,201 @@
+package org.vaadin.simplelayout;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.terminal.PaintException;
+import com.vaadin.terminal.PaintTarget;
+import com.vaadin.terminal.Paintable.RepaintRequestEvent;
+import com.vaadin.terminal.Paintable.RepaintRequestListener;
+import com.vaadin.ui.Component;
+import com.vaadin.ui.Label;
+
+/**
+ * Counts the repaints requested by the bulk operations of
+ * {@link SimpleLayout}.
+ */
+public class SimpleLayoutRepaintTest {
+
+    /**
+     * Counts the repaint requests that reach AbstractComponent. Unlike the
+     * repaint listeners, which are notified only once until the next paint,
+     * this sees every request that is not collected by a batch.
+     */
+    private static class CountingLayout extends SimpleLayout {
+
+        private int repaints;
+
+        @Override
+        public void childRequestedRepaint(
+                Collection<RepaintRequestListener> alreadyNotified) {
+            if (alreadyNotified == null) {
+                repaints++;
+            }
+            super.childRequestedRepaint(alreadyNotified);
+        }
+    }
+
+    private CountingLayout layout;
+
+    private int notifications;
+
+    @Before
+    public void setUp() {
+        layout = new CountingLayout();
+        layout.addListener(new RepaintRequestListener() {
+            public void repaintRequested(RepaintRequestEvent event) {
+                notifications++;
+            }
+        });
+        layout.addComponents(labels(10));
+        reset();
+    }
+
+    /**
+     * Starts counting from zero and lets the layout notify its listeners
+     * again, as the terminal does after each response.
+     */
+    private void reset() {
+        layout.requestRepaintRequests();
+        layout.repaints = 0;
+        notifications = 0;
+    }
+
+    /**
+     * Paints the layout and returns the HTML of the static blocks.
+     */
+    private String paint() throws PaintException {
+        final StringBuilder html = new StringBuilder();
+        PaintTarget target = (PaintTarget) Proxy.newProxyInstance(
+                PaintTarget.class.getClassLoader(),
+                new Class<?>[] { PaintTarget.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        if (method.getName().equals("addAttribute")
+                                && args[0].equals("html")) {
+                            html.append(args[1]);
+                        }
+                        return method.getReturnType() == boolean.class ? false
+                                : null;
+                    }
+                });
+        layout.paint(target);
+        return html.toString();
+    }
+
+    private static List<Component> labels(int count) {
+        List<Component> labels = new ArrayList<Component>();
+        for (int i = 0; i < count; i++) {
+            labels.add(new Label("Label " + i));
+        }
+        return labels;
+    }
+
+    @Test
+    public void separateAddsRepaintEachTime() {
+        for (Component c : labels(20)) {
+            layout.addComponent(c);
+        }
+        assertEquals(20, layout.repaints);
+    }
+
+    @Test
+    public void addComponentsRepaintsOnce() {
+        layout.addComponents(labels(20));
+        assertEquals(1, layout.repaints);
+        assertEquals(30, layout.size());
+    }
+
+    @Test
+    public void removeComponentsRepaintsOnce() {
+        layout.removeComponents(Arrays.asList(layout.getComponent(1),
+                layout.getComponent(3), layout.getComponent(5)));
+        assertEquals(1, layout.repaints);
+        assertEquals(7, layout.size());
+    }
+
+    @Test
+    public void removeComponentsOfOtherLayoutDoesNotRepaint() {
+        layout.removeComponents(labels(3));
+        assertEquals(0, layout.repaints);
+    }
+
+    @Test
+    public void removeAllComponentsRepaintsOnce() {
+        layout.removeAllComponents();
+        assertEquals(1, layout.repaints);
+        assertEquals(0, layout.size());
+    }
+
+    @Test
+    public void nestedBatchRepaintsOnce() {
+        layout.batch(new Runnable() {
+            public void run() {
+                layout.addComponent(new Label("First"));
+                layout.batch(new Runnable() {
+                    public void run() {
+                        layout.removeComponent(layout.getComponent(0));
+                        layout.addComponents(labels(5));
+                        layout.moveComponent(layout.getComponent(0), 3);
+                    }
+                });
+                assertEquals(0, layout.repaints);
+                layout.replaceComponent(layout.getComponent(0),
+                        new Label("Replacement"));
+            }
+        });
+        assertEquals(1, layout.repaints);
+        assertEquals(15, layout.size());
+    }
+
+    @Test
+    public void batchRepaintsOnceWhenChangesFail() {
+        try {
+            layout.batch(new Runnable() {
+                public void run() {
+                    layout.addComponent(new Label("Added"));
+                    throw new IllegalStateException();
+                }
+            });
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertEquals(1, layout.repaints);
+    }
+
+    @Test
+    public void collapsedLabelNotifiesOnEveryChange() throws PaintException {
+        Label label = (Label) layout.getComponent(0);
+        layout.setStaticCollapse(true);
+        paint();
+        reset();
+
+        label.setValue("First change");
+        assertEquals(1, notifications);
+        assertTrue(paint().contains("First change"));
+        reset();
+
+        label.setValue("Second change");
+        assertEquals(1, notifications);
+        assertTrue(paint().contains("Second change"));
+    }
+
+    @Test
+    public void separateChangesNotifyAfterEachReset() {
+        layout.addComponent(new Label("First"));
+        reset();
+        layout.addComponent(new Label("Second"));
+        assertEquals(1, notifications);
+    }
+}